@@ -40,6 +40,8 @@ const uint8_t kFactoryReset[] = {0x80, 0x0e, 0x00, 0x00};
 const uint8_t kLockReset[] = {0x80, 0x0e, 0x01, 0x00};
 const uint8_t kLoadMetaClear[] = {0x80, 0x10, 0x00, 0x00};
 const uint8_t kLoadMetaAppend[] = {0x80, 0x10, 0x01, 0x00};
+const uint8_t kQueryState[] = {0x80, 0x12, 0x00, 0x00};
+const uint8_t kStoreBatchCmd[] = {0x80, 0x14, 0x01, 0x00};
 static const uint16_t kMaxMetadataLoadSize = 1024;
 
 EseAppResult check_apdu_status(uint8_t code[2]) {
@@ -549,6 +551,91 @@ ESE_API EseAppResult ese_boot_rollback_index_write(
   return ESE_APP_RESULT_OK;
 }
 
+ESE_API EseAppResult ese_boot_rollback_index_write_batch(
+    struct EseBootSession *session, const uint8_t *slots,
+    const uint64_t *values, uint8_t count, uint16_t *results) {
+  struct EseSgBuffer tx[5];
+  struct EseSgBuffer rx[1];
+  uint8_t chan;
+  uint8_t i;
+  if (!session || !session->ese || !session->active) {
+    ALOGE("ese_boot_rollback_index_write_batch: invalid session");
+    return ESE_APP_RESULT_ERROR_ARGUMENTS;
+  }
+  if (!slots || !values) {
+    ALOGE("ese_boot_rollback_index_write_batch: NULL argument supplied");
+    return ESE_APP_RESULT_ERROR_ARGUMENTS;
+  }
+  if (count == 0 || count > kEseBootRollbackSlotCount) {
+    ALOGE("ese_boot_rollback_index_write_batch: count invalid");
+    return ESE_APP_RESULT_ERROR_ARGUMENTS;
+  }
+
+  // Each entry is the slot followed by its value, for up to
+  // kEseBootRollbackSlotCount entries.
+  uint8_t data[8 * (1 + sizeof(*values))];
+  uint8_t *entry = &data[0];
+  for (i = 0; i < count; ++i) {
+    *entry++ = slots[i];
+    ese_memcpy(entry, &values[i], sizeof(*values));
+    entry += sizeof(*values);
+  }
+
+  // APDU CLA
+  chan = kStoreBatchCmd[0] | session->channel_id;
+  tx[0].base = &chan;
+  tx[0].len = 1;
+  // APDU INS, P1 - P2
+  tx[1].base = (uint8_t *)&kStoreBatchCmd[1];
+  tx[1].len = 3;
+  // APDU Lc
+  uint8_t len = (uint8_t)(entry - &data[0]);
+  tx[2].base = &len;
+  tx[2].len = sizeof(len);
+  // APDU data
+  tx[3].base = &data[0];
+  tx[3].len = len;
+  // APDU Le
+  uint8_t le = 0;
+  tx[4].base = &le;
+  tx[4].len = sizeof(le);
+
+  // Status, a result per entry, and the completion code.
+  uint8_t rx_buf[2 + (2 * 8) + 2];
+  rx[0].base = &rx_buf[0];
+  rx[0].len = sizeof(rx_buf);
+
+  int rx_len = ese_transceive_sg(session->ese, tx, 5, rx, 1);
+  if (rx_len < 0 || ese_error(session->ese)) {
+    ALOGE("ese_boot_rollback_index_write_batch: comm error");
+    return ESE_APP_RESULT_ERROR_COMM_FAILED;
+  }
+  if (rx_len < 2) {
+    ALOGE("ese_boot_rollback_index_write_batch: too few bytes recieved.");
+    return ESE_APP_RESULT_ERROR_COMM_FAILED;
+  }
+  if (rx_len < 4) {
+    ALOGE("ese_boot_rollback_index_write_batch: APDU Error");
+    return check_apdu_status(&rx_buf[rx_len - 2]);
+  }
+  if (results && rx_len == 2 + (2 * count) + 2) {
+    for (i = 0; i < count; ++i) {
+      results[i] = (rx_buf[2 + (2 * i)] << 8) | rx_buf[3 + (2 * i)];
+    }
+  }
+  if (rx_buf[0] != 0 || rx_buf[1] != 0) {
+    ALOGE("ese_boot_rollback_index_write_batch: applet error code %x %x",
+          rx_buf[0], rx_buf[1]);
+    return ese_make_app_result(rx_buf[0], rx_buf[1]);
+  }
+  if (rx_len != 2 + (2 * count) + 2) {
+    ALOGE("ese_boot_rollback_index_write_batch: missing entry results: %d",
+          rx_len);
+    return ESE_APP_RESULT_ERROR_COMM_FAILED;
+  }
+  return ESE_APP_RESULT_OK;
+}
+
 ESE_API EseAppResult ese_boot_rollback_index_read(
     struct EseBootSession *session, uint8_t slot, uint64_t *value) {
   struct EseSgBuffer tx[4];
@@ -819,3 +906,76 @@ ESE_API EseAppResult ese_boot_get_state(struct EseBootSession *session,
   ALOGE("ese_boot_get_state: missing version tag");
   return ESE_APP_RESULT_ERROR_OS;
 }
+
+ESE_API EseAppResult ese_boot_query_state(struct EseBootSession *session,
+                                          const uint8_t *query,
+                                          uint8_t queryLen, uint8_t *reply,
+                                          uint16_t maxSize,
+                                          uint16_t *replyLen) {
+  struct EseSgBuffer tx[5];
+  struct EseSgBuffer rx[3];
+  int rx_len;
+  if (!session || !session->ese || !session->active) {
+    return ESE_APP_RESULT_ERROR_ARGUMENTS;
+  }
+  if (!query || !reply || !replyLen) {
+    ALOGE("ese_boot_query_state: NULL argument supplied");
+    return ESE_APP_RESULT_ERROR_ARGUMENTS;
+  }
+  if (queryLen == 0 || queryLen % 3 != 0 ||
+      queryLen > 3 * kEseBootQueryItemMax) {
+    ALOGE("ese_boot_query_state: invalid query length: %u", queryLen);
+    return ESE_APP_RESULT_ERROR_ARGUMENTS;
+  }
+  if (maxSize > 0x7ffd) {
+    maxSize = 0x7ffd;
+  }
+  *replyLen = 0;
+
+  uint8_t chan = kQueryState[0] | session->channel_id;
+  tx[0].base = &chan;
+  tx[0].len = 1;
+  tx[1].base = (uint8_t *)&kQueryState[1];
+  tx[1].len = 3;  // INS, P1, P2
+  // Extended length Lc.
+  uint8_t lc[] = {0x0, 0x0, queryLen};
+  tx[2].base = &lc[0];
+  tx[2].len = sizeof(lc);
+  tx[3].c_base = query;
+  tx[3].len = queryLen;
+  // Accomodate the applet 2 byte status code.
+  uint8_t le[] = {((maxSize + 2) >> 8), ((maxSize + 2) & 0xff)};
+  tx[4].base = &le[0];
+  tx[4].len = sizeof(le);
+
+  uint8_t status[2];  // App reply or APDU error.
+  rx[0].base = &status[0];
+  rx[0].len = sizeof(status);
+  rx[1].base = reply;
+  rx[1].len = maxSize;
+  uint8_t apdu_status[2];
+  rx[2].base = &apdu_status[0];
+  rx[2].len = sizeof(apdu_status);
+
+  rx_len = ese_transceive_sg(session->ese, tx, 5, rx, 3);
+  if (rx_len < 2 || ese_error(session->ese)) {
+    ALOGE("ese_boot_query_state: comm failure");
+    return ESE_APP_RESULT_ERROR_COMM_FAILED;
+  }
+  if (rx_len == 2) {
+    ALOGE("ese_boot_query_state: SE exception");
+    return check_apdu_status(&status[0]);
+  }
+  if (status[0] != 0 || status[1] != 0) {
+    ALOGE("ese_boot_query_state: applet error code %x %x", status[0],
+          status[1]);
+    return ese_make_app_result(status[0], status[1]);
+  }
+  if (rx_len < 4) {
+    ALOGE("ese_boot_query_state: did not receive enough data: %d", rx_len);
+    return ESE_APP_RESULT_ERROR_COMM_FAILED;
+  }
+  // Drop the applet status and the completion code.
+  *replyLen = (uint16_t)(rx_len - 4);
+  return ESE_APP_RESULT_OK;
+}
@@ -31,9 +31,11 @@ extern const uint8_t kSelectApplet[];
 extern const uint32_t kSelectAppletLength;
 extern const uint8_t kStoreCmd[];
 extern const uint8_t kLoadCmd[];
+extern const uint8_t kStoreBatchCmd[];
 extern const uint8_t kGetLockState[];
 extern const uint8_t kSetLockState[];
 extern const uint8_t kGetState[];
+extern const uint8_t kQueryState[];
 extern const uint8_t kSetProduction[];
 extern const uint8_t kCarrierLockTest[];
 
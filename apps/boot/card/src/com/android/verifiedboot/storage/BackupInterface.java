@@ -20,11 +20,15 @@ public interface BackupInterface {
     /**
      * Returns true on a successful reimport of data.
      *
+     * The data may come from an older applet, so it can be shorter than
+     * backupSize() or use an older format.
+     *
+     * @param version backupVersion() of the applet that wrote the data.
      * @param inBytes array to read from
      * @param inBytesOffset offset to begin copying from.
      * @param inBytesLength length to copy from |inBytes|.
      */
-    boolean restore(byte[] inBytes, short inBytesOffset, short inBytesLength);
+    boolean restore(byte version, byte[] inBytes, short inBytesOffset, short inBytesLength);
 
     /**
      * Copies all internal state to the given array and returns the number of
@@ -42,4 +46,12 @@ public interface BackupInterface {
     * @return size of a backup as a short.
     */
    short backupSize();
+
+   /**
+    * Returns the format version of backup().  It starts at 1 and must be
+    * bumped whenever restore() would misread the new format.
+    *
+    * @return version as a byte.
+    */
+   byte backupVersion();
 }
@@ -29,6 +29,7 @@ import com.android.verifiedboot.storage.LockInterface;
 import com.android.verifiedboot.globalstate.owner.OwnerInterface;
 
 class BasicLock implements LockInterface {
+    private final static byte BACKUP_VERSION = (byte) 1;
     // Layout: LockValue (byte)
     private byte[] storage;
     private short storageOffset;
@@ -79,7 +80,17 @@ class BasicLock implements LockInterface {
      * {@inheritDoc}
      */
     @Override
-    public boolean restore(byte[] inBytes, short inBytesOffset,
+    public byte backupVersion() {
+        return BACKUP_VERSION;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Data from a smaller lock is copied in as a prefix.
+     */
+    @Override
+    public boolean restore(byte version, byte[] inBytes, short inBytesOffset,
                            short inBytesLength) {
         if (inBytesLength > backupSize() || inBytesLength == (short)0) {
             return false;
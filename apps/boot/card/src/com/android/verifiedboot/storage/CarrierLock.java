@@ -30,6 +30,7 @@ import com.android.verifiedboot.globalstate.owner.OwnerInterface;
 
 class CarrierLock implements LockInterface, BackupInterface {
     private final static byte VERSION = (byte) 1;
+    private final static byte BACKUP_VERSION = (byte) 1;
     private final static byte VERSION_SIZE = (byte) 8;
     private final static byte NONCE_SIZE = (byte) 8;
     private final static byte DEVICE_DATA_SIZE = (byte) (256 / 8);
@@ -502,7 +503,17 @@ class CarrierLock implements LockInterface, BackupInterface {
      * {@inheritDoc}
      */
     @Override
-    public boolean restore(byte[] inBytes, short inBytesOffset,
+    public byte backupVersion() {
+        return BACKUP_VERSION;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Data from a smaller lock is copied in as a prefix.
+     */
+    @Override
+    public boolean restore(byte version, byte[] inBytes, short inBytesOffset,
                            short inBytesLength) {
         if (inBytesLength > backupSize() || inBytesLength == (short)0) {
             return false;
@@ -18,16 +18,62 @@ package com.android.verifiedboot.storage;
 
 import javacard.framework.AID;
 import javacard.framework.CardRuntimeException;
+import javacard.framework.JCSystem;
 import javacard.framework.Shareable;
 import javacard.framework.Util;
 
+import javacard.security.Checksum;
+
 import com.android.verifiedboot.storage.BackupInterface;
 
+/**
+ * Tracks the objects to back up and handles the backup stream format.
+ *
+ * Stream format:
+ *   TAG_MAGIC (byte)
+ *   0x0004 (short)
+ *   MAGIC (short)
+ *   STREAM_VERSION (byte)
+ *   number of objects (byte)
+ *   for each tracked object, in any order:
+ *     tag (byte)
+ *     backupVersion() (byte)
+ *     length (short)
+ *     CRC-16 of the data (short)
+ *     data (length)
+ *
+ * Streams written before STREAM_VERSION have a 0x0002 header length,
+ * no version or count, and a bare (tag, length, data) per tag.  Both
+ * are restored.
+ *
+ * On its own, this class reads and writes the stream from memory, so it
+ * can stand in for the OS backup service off-card.
+ */
 public class DefaultOsBackupImpl implements OsBackupInterface {
+    final public static short MAGIC = (short)0xdeed;
+    final public static byte STREAM_VERSION = (byte) 0x02;
+    final private static byte LEGACY_VERSION = (byte) 0x01;
+    final private static short LEGACY_HEADER_LENGTH = (short) 2;
+    final private static short HEADER_LENGTH = (short) 4;
+    // TAG_MAGIC, length, MAGIC
+    final private static short MAGIC_SIZE = (short) 5;
+    // tag, version, length, checksum
+    final private static short OBJECT_HEADER_SIZE = (short) 6;
+    // tag, length
+    final private static short LEGACY_OBJECT_HEADER_SIZE = (short) 3;
+
     private BackupInterface[] objects;
+    private Checksum crc;
+    private byte[] checksum;
+    private short streamOffset;
 
     public DefaultOsBackupImpl() {
         objects = new BackupInterface[OsBackupInterface.TAG_MAX + 1];
+        crc = Checksum.getInstance(Checksum.ALG_ISO3309_CRC16, false);
+        // Used at install and from the LoaderService, when this applet is
+        // not selected.
+        checksum = JCSystem.makeTransientByteArray((short) 2,
+                                                   JCSystem.CLEAR_ON_RESET);
     }
 
     /**
@@ -45,14 +91,168 @@ public class DefaultOsBackupImpl implements OsBackupInterface {
         return objects;
     }
 
+    /**
+     * Returns the size of the stream written by writeStream().
+     */
+    protected short streamSize() {
+        short length = (short)(MAGIC_SIZE + 2);
+        short i;
+        for (i = (short)0; i < (short)objects.length; ++i) {
+            if (objects[i] != null) {
+                length += (short)(OBJECT_HEADER_SIZE + objects[i].backupSize());
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes every tracked object to |out| as a backup stream.
+     *
+     * @param out array to write to; it must hold streamSize() bytes.
+     * @param outOffset offset to start writing at.
+     * @return bytes written.
+     */
+    protected short writeStream(byte[] out, short outOffset) {
+        short offset = outOffset;
+        out[offset++] = TAG_MAGIC;
+        offset = Util.setShort(out, offset, HEADER_LENGTH);
+        offset = Util.setShort(out, offset, MAGIC);
+        out[offset++] = STREAM_VERSION;
+        short countOffset = offset++;
+        byte count = (byte) 0;
+        short i;
+        for (i = (short)0; i < (short)objects.length; ++i) {
+            if (objects[i] == null) {
+                continue;
+            }
+            short dataOffset = (short)(offset + OBJECT_HEADER_SIZE);
+            short length = objects[i].backup(out, dataOffset);
+            out[offset] = (byte) i;
+            out[(short)(offset + 1)] = objects[i].backupVersion();
+            Util.setShort(out, (short)(offset + 2), length);
+            crc.doFinal(out, dataOffset, length, out, (short)(offset + 4));
+            offset = (short)(dataOffset + length);
+            count++;
+        }
+        out[countOffset] = count;
+        return (short)(offset - outOffset);
+    }
+
+    /**
+     * Makes the next |length| bytes of the stream being restored available
+     * in |buffer|.
+     *
+     * This implementation reads them in place from the array passed to
+     * restore().
+     *
+     * @param buffer the array passed to restore().
+     * @param length bytes to read.
+     * @return offset of the bytes in |buffer|, or -1 on failure.
+     */
+    protected short readStream(byte[] buffer, short length) {
+        if (length < (short) 0 ||
+            length > (short)(buffer.length - streamOffset)) {
+            return (short) -1;
+        }
+        short offset = streamOffset;
+        streamOffset += length;
+        return offset;
+    }
+
+    /**
+     * Restores the tracked objects from a stream fetched with readStream().
+     *
+     * Objects that are no longer tracked, fail their checksum or have a
+     * newer version than the tracked object are skipped.  Tracked objects
+     * missing from the stream are left as they are.
+     *
+     * @param buffer array handed to readStream().
+     * @return true if every object in the stream was restored.
+     */
+    protected boolean restoreStream(byte[] buffer) {
+        short offset = readStream(buffer, MAGIC_SIZE);
+        if (offset < (short) 0 || buffer[offset] != TAG_MAGIC ||
+            Util.getShort(buffer, (short)(offset + 3)) != MAGIC) {
+            return false;
+        }
+        short headerLength = Util.getShort(buffer, (short)(offset + 1));
+        if (headerLength == LEGACY_HEADER_LENGTH) {
+            return restoreLegacyStream(buffer);
+        }
+        if (headerLength != HEADER_LENGTH) {
+            return false;
+        }
+        offset = readStream(buffer, (short) 2);
+        // A newer stream layout can't be parsed.
+        if (offset < (short) 0 || buffer[offset] != STREAM_VERSION) {
+            return false;
+        }
+        short count = (short)(buffer[(short)(offset + 1)] & 0xff);
+        boolean restored = true;
+        for ( ; count > (short) 0; --count) {
+            offset = readStream(buffer, OBJECT_HEADER_SIZE);
+            if (offset < (short) 0) {
+                return false;
+            }
+            byte tag = buffer[offset];
+            byte version = buffer[(short)(offset + 1)];
+            short length = Util.getShort(buffer, (short)(offset + 2));
+            short expected = Util.getShort(buffer, (short)(offset + 4));
+            offset = readStream(buffer, length);
+            if (offset < (short) 0) {
+                return false;
+            }
+            if (tag < (byte) 0 || tag >= (byte)objects.length ||
+                objects[tag] == null) {
+                continue;
+            }
+            crc.doFinal(buffer, offset, length, checksum, (short) 0);
+            if (Util.getShort(checksum, (short) 0) != expected ||
+                version > objects[tag].backupVersion() ||
+                objects[tag].restore(version, buffer, offset, length) == false) {
+                restored = false;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Restores a stream written before STREAM_VERSION, where objects are
+     * serialized in tag order and tagged with their index.
+     */
+    private boolean restoreLegacyStream(byte[] buffer) {
+        short i;
+        for (i = (short) 0; i < (short)objects.length; ++i) {
+            short offset = readStream(buffer, LEGACY_OBJECT_HEADER_SIZE);
+            if (offset < (short) 0) {
+                return false;
+            }
+            byte tag = buffer[offset];
+            short length = Util.getShort(buffer, (short)(offset + 1));
+            offset = readStream(buffer, length);
+            if (offset < (short) 0) {
+                return false;
+            }
+            if (tag == i && objects[i] != null) {
+                objects[i].restore(LEGACY_VERSION, buffer, offset, length);
+            } // else we skip it.
+        }
+        return true;
+    }
+
     /**
      * {@inheritDoc}
      *
-     * Not implemented.
+     * Restores from a stream held in |inBytes|.
      */
     @Override
     public boolean restore(byte[] inBytes, short inBytesOffset) {
-        return false;
+        streamOffset = inBytesOffset;
+        try {
+            return restoreStream(inBytes);
+        } catch (CardRuntimeException e) {
+            return false;
+        }
     }
 
     /**
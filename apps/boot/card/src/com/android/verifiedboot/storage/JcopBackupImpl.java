@@ -30,8 +30,6 @@ import com.android.verifiedboot.storage.DefaultOsBackupImpl;
 import com.android.verifiedboot.storage.OsBackupInterface;
 
 public class JcopBackupImpl extends DefaultOsBackupImpl implements LSBackup {
-    final public static short MAGIC = (short)0xdeed;
-
     // From NXP, the AID of the LoaderService.
     private static final byte[] LS_AID = {
         // NXP RID
@@ -46,61 +44,53 @@ public class JcopBackupImpl extends DefaultOsBackupImpl implements LSBackup {
         (byte)0x01, // LS Application
     };
 
+    // Source for readStream() while restore() runs.
+    private LSPullModeRestore pullRestore;
 
     /**
      * Returns true on a successful reimport of data.
      *
-     * @param iarray to read from
-     * @param offset to begin copying from.
+     * @param in working buffer large enough for the largest object.
+     * @param offset unused.
      */
     @Override
     public boolean restore(byte[] in, short offset) {
-        LSPullModeRestore restore = getLSPullModeRestore();
-        offset = (short) 0;
-        if (restore == null) {
-            return false;
-        }
-        if (restore.start() == (short) 0) {
-            return false;
-        }
-        short length = (short) 5;
-        if (restore.pullData(in, offset, length) == false) {
-            return false;
-        }
-        byte tag = in[0];
-        if (tag != TAG_MAGIC) {
-            return false;
-        }
-        if (Util.getShort(in, (short)1) != (short)2) {
-            return false;
-        }
-        if (Util.getShort(in, (short)3) != MAGIC) {
+        pullRestore = getLSPullModeRestore();
+        if (pullRestore == null) {
             return false;
         }
-        // Magic is good. Let's process all the tags. They should be
-        // serialized in order and if not, we abort.
-        BackupInterface[] objects = tracked();
-        short i = (short) 0;
-        for ( ; i < objects.length; ++i) {
-            // Get tag and length at the same time.
-            length = 3;
-            if (restore.pullData(in, (short)0, length) == false) {
+        boolean restored = false;
+        try {
+            if (pullRestore.start() == (short) 0) {
                 return false;
             }
-            tag = in[0];
-            length = Util.getShort(in, (short)1);
-            if (restore.pullData(in, (short)0, length) == false) {
-                return false;
+            restored = restoreStream(in);
+            if (pullRestore.end() == false) {
+                restored = false;
             }
-            if (tag == i && objects[i] != null) {
-                objects[i].restore(in, (short)0, length);
-            } // else we skip it.
+        } catch (CardRuntimeException e) {
+            restored = false;
+        } finally {
+            pullRestore = null;
         }
+        return restored;
+    }
 
-        if (restore.end() == false) {
-            return false;
+    /**
+     * {@inheritDoc}
+     *
+     * Pulls the bytes from the LoaderService into the start of |buffer|.
+     */
+    @Override
+    protected short readStream(byte[] buffer, short length) {
+        if (length < (short) 0 || length > (short)buffer.length) {
+            return (short) -1;
+        }
+        if (length != (short) 0 &&
+            pullRestore.pullData(buffer, (short) 0, length) == false) {
+            return (short) -1;
         }
-        return true;
+        return (short) 0;
     }
 
     /**
@@ -120,53 +110,27 @@ public class JcopBackupImpl extends DefaultOsBackupImpl implements LSBackup {
 
     /**
      * Called via LSBackup for saving off data prior to an update.
-     * Only lockStorage has to be stored, but it means that install() would
-     * need to handle any changes in lock sizes.
-     *
-     * TODO(wad) In each LockInterface tag store with last metadataSize.
      *
      * @param backup interface to feed data to
      * @param buffer working buffer that is shared with LSPushModeBackup
      * @return true on success or false if there is a failure.
      */
     public boolean backup(LSPushModeBackup backup, byte[] buffer) {
-        BackupInterface[] objects = tracked();
-        short length = (short) 5;  // magic(TAG, SIZE, MAGIC)
-        short i;
-        for (i = (short)0; i < (short)objects.length; ++i) {
-            length += 3;  // tag, length
-            if (objects[i] != null) {
-                length += objects[i].backupSize();
-            }
-        }
+        short length = streamSize();
         // Interface requires mod 16.
         if (length % 16 != 0) {
           length += (16 - (length % 16));
         }
-        if (backup.start(length) == false) {
+        if (length > (short)buffer.length) {
             return false;
         }
-        // Set magic
-        short offset = (short) 0;
-        buffer[offset++] = TAG_MAGIC;
-        Util.setShort(buffer, offset, (short)2);
-        offset += 2;
-        Util.setShort(buffer, offset, MAGIC);
-        offset += 2;
-
-        for (i = (short)0; i < (short)objects.length; ++i) {
-            buffer[offset++] = (byte) i;  // TAG == index.
-            if (objects[i] != null) {
-                Util.setShort(buffer, offset, objects[i].backupSize());
-            } else {
-                Util.setShort(buffer, offset, (short)0);
-            }
-            offset += 2;
-            if (objects[i] != null) {
-                offset += objects[i].backup(buffer, offset);
-            }
+        if (backup.start(length) == false) {
+            return false;
         }
-        // TODO(wad) Worth checking if offset != length.
+        short written = writeStream(buffer, (short) 0);
+        // Zero the padding; restore stops at the last object.
+        Util.arrayFillNonAtomic(buffer, written, (short)(length - written),
+                                (byte) 0x00);
         if (backup.pushData(buffer, (short)0, length) == false) {
             return false;
         }
@@ -69,6 +69,8 @@ public class Storage extends Applet implements ExtendedLength, Shareable {
     private byte[] reservedMetadata;
     private byte[] metadata;
     private short metadataLength;
+    private byte[] query;
+    private MessageDigest metadataDigest;
 
     // Indices into locks[].
     private final static byte LOCK_CARRIER = (byte) 0x00;
@@ -85,6 +87,8 @@ public class Storage extends Applet implements ExtendedLength, Shareable {
     private final static byte INS_CARRIER_LOCK_TEST = (byte) 0x0c;
     private final static byte INS_RESET = (byte) 0x0e;
     private final static byte INS_LOAD_META = (byte) 0x10;
+    private final static byte INS_QUERY_STATE = (byte) 0x12;
+    private final static byte INS_BATCH_SLOTS = (byte) 0x14;
 
     private final static byte RESET_FACTORY = (byte) 0x0;
     private final static byte RESET_LOCKS = (byte) 0x1;
@@ -92,6 +96,18 @@ public class Storage extends Applet implements ExtendedLength, Shareable {
     private final static byte LOAD_META_CLEAR = (byte) 0x0;
     private final static byte LOAD_META_APPEND = (byte) 0x1;
 
+    private final static byte BATCH_SLOTS_READ = (byte) 0x0;
+    private final static byte BATCH_SLOTS_UPDATE = (byte) 0x1;
+
+    // Item tags for INS_QUERY_STATE.
+    private final static byte QUERY_LOCK = (byte) 0x01;
+    private final static byte QUERY_LOCK_METADATA = (byte) 0x02;
+    private final static byte QUERY_VERSION_SLOT = (byte) 0x03;
+    private final static short QUERY_ITEM_SIZE = (short) 3;
+    // Room for 16 items.
+    private final static short QUERY_BYTES_MAX = (short) 48;
+    private final static short QUERY_DIGEST_SIZE = (short) 32;
+
     private final static short NO_METADATA = (short) 0;
     private final static short NO_REQ_LOCKS = (short) 0;
     // Plenty of space for an owner key and any serialization.
@@ -101,6 +117,9 @@ public class Storage extends Applet implements ExtendedLength, Shareable {
     /**
      * Installs this applet.
      *
+     * The optional parameters are the number of rollback slots (byte) and
+     * the size of each slot (byte).
+     *
      * @param params the installation parameters
      * @param offset the starting offset of the parameters
      * @param length the length of the parameters
@@ -115,26 +134,42 @@ public class Storage extends Applet implements ExtendedLength, Shareable {
         short paramsOffset = (short)(privsOffset + privLength);
         short paramLength = bArray[paramsOffset++];
 
-        Storage applet = new Storage();
+        byte numSlots = VersionStorage.DEFAULT_NUM_SLOTS;
+        byte slotBytes = VersionStorage.DEFAULT_SLOT_BYTES;
+        if (paramLength >= 2) {
+            numSlots = bArray[paramsOffset];
+            slotBytes = bArray[(short)(paramsOffset + 1)];
+        }
+
+        Storage applet = new Storage(numSlots, slotBytes);
         applet.register(bArray, aidOffset, (byte)aidLength);
         if (paramLength == 0) {
             // TODO(wad) Should we fail the install on failure?
-            applet.restore(bArray);
+            applet.restore();
         }
     }
 
-    private Storage() {
+    private Storage(byte numSlots, byte slotBytes) {
         globalState = new GlobalStateImpl();
         osBackupImpl = new JcopBackupImpl();
 
-        versionStorage = new VersionStorage(globalState);
+        versionStorage = new VersionStorage(globalState, numSlots,
+                                            slotBytes);
         osBackupImpl.track(OsBackupInterface.TAG_VERSION_STORAGE,
                            versionStorage);
 
         lockStorage = new byte[4096];
-        // Reserve metadata for scratch if there's no transient
-        reservedMetadata = new byte[OWNER_LOCK_METADATA_SIZE];
+        // Reserve metadata for scratch if there's no transient.  It is also
+        // the restore() working buffer, so it fits the largest backed up
+        // object: the owner lock byte and its metadata.
+        reservedMetadata = new byte[(short)(OWNER_LOCK_METADATA_SIZE + 1)];
         metadata = null;
+        // The query is copied out of the APDU buffer before the response
+        // is assembled there.
+        query = JCSystem.makeTransientByteArray(QUERY_BYTES_MAX,
+                                                JCSystem.CLEAR_ON_DESELECT);
+        metadataDigest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256,
+                                                   false);
 
         // Initialize all supported locks here.
         locks = new LockInterface[4];
@@ -223,19 +258,20 @@ public class Storage extends Applet implements ExtendedLength, Shareable {
      *   lockStorageLength (short)
      *   lockStorage (lockStorageLength=4096)
      *
+     * Everything ahead of lockStorage is assembled in the APDU buffer and
+     * sent in one transfer, followed by lockStorage itself, so no scratch
+     * is allocated per request.
+     *
      * TODO(wad) It'd be nice to TLV these values...
      *
      * @return 0x00 if the response has been sent.
      */
     private short sendStorageState(APDU apdu) {
         final byte buffer[] = apdu.getBuffer();
-        byte[] working = new byte[2];
-        short value = 0;
-        short resp = 0;
-        byte i;
         short expectedLength = apdu.setOutgoing();
-        short length = (short)(2 + 1 + 2 + 1 + 1 + 1 + 1 + (2 * locks.length) +
-                               2 + lockStorage.length + 2);
+        short headerLength = (short)(2 + 1 + 2 + 1 + 1 + 1 + 1 +
+                                     (2 * locks.length) + 2);
+        short length = (short)(headerLength + lockStorage.length);
         if (expectedLength < length) {
             // Error with length.
             buffer[0] = (byte) 0x01;
@@ -252,95 +288,262 @@ public class Storage extends Applet implements ExtendedLength, Shareable {
             return 0x0101;
         }
 
-        // Send the usual prefix status indicating we made it this far.
-        try {
-            Util.setShort(working, (short) 0, (short) 0x0);
-            apdu.sendBytesLong(working, (short) 0, (short) 2);
-            length -= 2;
-        } catch (CardRuntimeException e) {
-            return 0x0001;
+        // The usual prefix status indicating we made it this far.
+        short offset = Util.setShort(buffer, (short) 0, (short) 0x0);
+        buffer[offset++] = VERSION;
+        // The length field has always counted one byte beyond the
+        // prefix status; ese_boot_get_state() checks against that.
+        offset = Util.setShort(buffer, offset, (short)(length - 1));
+        buffer[offset++] = globalState.inBootloaderRaw();
+        buffer[offset++] = (byte)(globalState.inBootloader() ? 1 : 0);
+        buffer[offset++] = (byte)(globalState.production() ? 1 : 0);
+        buffer[offset++] = (byte)locks.length;
+        byte i;
+        for (i = 0; i < (byte)locks.length; ++i) {
+            offset = Util.setShort(buffer, offset, locks[i].initialized());
         }
+        offset = Util.setShort(buffer, offset, (short)lockStorage.length);
 
         try {
-            working[0] = VERSION;
-            apdu.sendBytesLong(working, (short) 0, (short) 1);
-            length--;
+            apdu.sendBytes((short) 0, offset);
         } catch (CardRuntimeException e) {
             return 0x0001;
         }
-
         try {
-            Util.setShort(working, (short) 0, length);
-            apdu.sendBytesLong(working, (short) 0, (short) 2);
-            length -= 2;
+            apdu.sendBytesLong(lockStorage, (short) 0, (short) lockStorage.length);
         } catch (CardRuntimeException e) {
-            ISOException.throwIt(length);
+            ISOException.throwIt(headerLength);
         }
+        return 0;
+    }
 
+    /**
+     * Emits only the requested pieces of the applet state.
+     *
+     * Request: a list of items, each
+     *   tag (byte)
+     *   length (byte, always 1)
+     *   id (byte)
+     * where tag is one of
+     *   QUERY_LOCK: lock |id| without its metadata
+     *   QUERY_LOCK_METADATA: lock |id| and its exported metadata
+     *   QUERY_VERSION_SLOT: VersionStorage slot |id|
+     *
+     * Response: status (short) followed by one item per requested item,
+     * in request order, each
+     *   tag (byte)
+     *   length (short)
+     *   value:
+     *     QUERY_LOCK: id, lock byte, SHA-256 of the exported metadata
+     *                 (absent for locks without metadata)
+     *     QUERY_LOCK_METADATA: id, lock byte, exported metadata
+     *     QUERY_VERSION_SLOT: id, slot bytes
+     *
+     * The digest lets the bootloader notice metadata changes without
+     * pulling up to OWNER_LOCK_METADATA_SIZE bytes on every boot.
+     *
+     * @param apdu payload from the client.
+     * @param queryLength bytes of request data in the APDU buffer.
+     * @return 0x00 if the response has been sent.
+     */
+    private short sendQueriedState(APDU apdu, short queryLength) {
+        final byte buffer[] = apdu.getBuffer();
+        if (queryLength == 0 || queryLength > QUERY_BYTES_MAX ||
+            queryLength % QUERY_ITEM_SIZE != 0) {
+            return 0x0001;
+        }
+        Util.arrayCopyNonAtomic(buffer, apdu.getOffsetCdata(),
+                                query, (short) 0, queryLength);
+
+        // Check every item and size the response before sending anything.
+        short length = (short) 2;
+        short offset;
+        byte tag;
+        byte id;
+        for (offset = 0; offset < queryLength; offset += QUERY_ITEM_SIZE) {
+            tag = query[offset];
+            id = query[(short)(offset + 2)];
+            if (query[(short)(offset + 1)] != (byte) 1) {
+                return 0x0001;
+            }
+            switch (tag) {
+            case QUERY_LOCK:
+            case QUERY_LOCK_METADATA:
+                if (id < (byte) 0 || id >= (byte)locks.length) {
+                    return 0x0003;
+                }
+                if (locks[id].initialized() != 0) {
+                    return locks[id].initialized();
+                }
+                length += (short) 5;
+                if (tag == QUERY_LOCK_METADATA) {
+                    length += locks[id].metadataLength();
+                } else if (locks[id].metadataLength() != 0) {
+                    length += QUERY_DIGEST_SIZE;
+                }
+                break;
+            case QUERY_VERSION_SLOT:
+                if (id < (byte) 0 || id >= versionStorage.numSlots()) {
+                    return 0x0004;
+                }
+                length += (short)(4 + versionStorage.slotBytes());
+                break;
+            default:
+                return 0x0002;
+            }
+            if (length < 0) {
+                // Repeated metadata requests overflowed the response.
+                return 0x0005;
+            }
+        }
+
+        short expectedLength = apdu.setOutgoing();
+        if (expectedLength < length) {
+            // Error with length.
+            buffer[0] = (byte) 0x01;
+            buffer[1] = (byte) 0x00;
+            buffer[2] = (byte)(length >> 8);
+            buffer[3] = (byte)(length & 0xff);
+            apdu.setOutgoingLength((short) 4);
+            apdu.sendBytes((short) 0, (short) 4);
+            return 0x0;
+        }
         try {
-            working[0] = globalState.inBootloaderRaw();
-            apdu.sendBytesLong(working, (short) 0, (short) 1);
-            length--;
+            apdu.setOutgoingLength(length);
         } catch (CardRuntimeException e) {
-            ISOException.throwIt(length);
+            return 0x0101;
         }
 
         try {
-            working[0] = (byte)0;
-            if (globalState.inBootloader() == true) {
-                working[0] = (byte)1;
+            Util.setShort(buffer, (short) 0, (short) 0x0);
+            apdu.sendBytes((short) 0, (short) 2);
+            for (offset = 0; offset < queryLength; offset += QUERY_ITEM_SIZE) {
+                tag = query[offset];
+                id = query[(short)(offset + 2)];
+                buffer[0] = tag;
+                buffer[3] = id;
+                if (tag == QUERY_VERSION_SLOT) {
+                    versionStorage.getSlot(id, buffer, (short) 4);
+                    Util.setShort(buffer, (short) 1,
+                                  (short)(1 + versionStorage.slotBytes()));
+                    apdu.sendBytes((short) 0,
+                                   (short)(4 + versionStorage.slotBytes()));
+                    continue;
+                }
+                LockInterface lock = locks[id];
+                buffer[4] = lockStorage[lock.lockOffset()];
+                if (tag == QUERY_LOCK_METADATA) {
+                    Util.setShort(buffer, (short) 1,
+                                  (short)(2 + lock.metadataLength()));
+                    apdu.sendBytes((short) 0, (short) 5);
+                    apdu.sendBytesLong(lockStorage, lock.metadataOffset(),
+                                       lock.metadataLength());
+                    continue;
+                }
+                short valueLength = (short) 2;
+                if (lock.metadataLength() != 0) {
+                    valueLength += metadataDigest.doFinal(
+                            lockStorage, lock.metadataOffset(),
+                            lock.metadataLength(), buffer, (short) 5);
+                }
+                Util.setShort(buffer, (short) 1, valueLength);
+                apdu.sendBytes((short) 0, (short)(3 + valueLength));
             }
-            apdu.sendBytesLong(working, (short) 0, (short) 1);
-            length--;
         } catch (CardRuntimeException e) {
             ISOException.throwIt(length);
         }
+        return 0;
+    }
 
-        try {
-            working[0] = (byte)0;
-            if (globalState.production() == true) {
-                working[0] = (byte)1;
+    /**
+     * Reads or updates several rollback slots in one command.
+     *
+     * BATCH_SLOTS_READ request: slot numbers (byte each).  A request with
+     * an out of range slot fails with 0x0002 and nothing else is sent.
+     * Response: status (short) followed by, per requested slot,
+     *   result (short, as from VersionStorage.getSlot)
+     *   slot bytes (zero if result is not 0x0)
+     *
+     * BATCH_SLOTS_UPDATE request: per slot, its number (byte) followed by
+     * the new value.  See VersionStorage.setSlots for the checks applied.
+     * Response: status (short, 0x0 only if every slot was written)
+     * followed by one result (short) per entry.
+     *
+     * @param apdu payload from the client.
+     * @param op BATCH_SLOTS_READ or BATCH_SLOTS_UPDATE.
+     * @param dataLength bytes of request data in the APDU buffer.
+     * @return 0x00 if the response has been sent.
+     */
+    private short handleSlotBatch(APDU apdu, byte op, short dataLength) {
+        final byte buffer[] = apdu.getBuffer();
+        final short cdataOffset = apdu.getOffsetCdata();
+        final short slotBytes = (short) versionStorage.slotBytes();
+        short count;
+        short i;
+        if (op == BATCH_SLOTS_UPDATE) {
+            if (dataLength % (short)(1 + slotBytes) != 0) {
+                return 0x0001;
             }
-            apdu.sendBytesLong(working, (short) 0, (short) 1);
-            length--;
-        } catch (CardRuntimeException e) {
-            ISOException.throwIt(length);
+            count = (short)(dataLength / (short)(1 + slotBytes));
+            short rejected = versionStorage.setSlots(buffer, cdataOffset,
+                                                     count, buffer,
+                                                     (short) 2);
+            if (rejected < 0) {
+                return 0x0002;
+            }
+            Util.setShort(buffer, (short) 0,
+                          (short)(rejected == 0 ? 0x0 : 0x0003));
+            apdu.setOutgoingAndSend((short) 0, (short)(2 + (2 * count)));
+            return 0;
         }
-        try {
-            working[0] = (byte)locks.length;
-            apdu.sendBytesLong(working, (short) 0, (short) 1);
-            length--;
-        } catch (CardRuntimeException e) {
-            ISOException.throwIt(length);
+        if (op != BATCH_SLOTS_READ) {
+            return 0x0100;
         }
 
-        try {
-            for (i = 0; i < (byte)locks.length; ++i) {
-                Util.setShort(working, (short) 0, locks[i].initialized());
-                apdu.sendBytesLong(working, (short) 0, (short) 2);
-                length -= 2;
+        count = dataLength;
+        if (count < 1 || count > (short) versionStorage.numSlots()) {
+            return 0x0002;
+        }
+        // Every slot is checked before anything is sent.
+        for (i = 0; i < count; ++i) {
+            final byte slot = buffer[(short)(cdataOffset + i)];
+            if (slot < (byte) 0 || slot >= versionStorage.numSlots()) {
+                return 0x0002;
             }
-        } catch (CardRuntimeException e) {
-            ISOException.throwIt(length);
         }
-
+        // The response is staged in the APDU buffer.
+        Util.arrayCopyNonAtomic(buffer, cdataOffset, query, (short) 0, count);
+        short length = (short)(2 + (count * (short)(2 + slotBytes)));
+        short expectedLength = apdu.setOutgoing();
+        if (expectedLength < length) {
+            // Error with length.
+            buffer[0] = (byte) 0x01;
+            buffer[1] = (byte) 0x00;
+            buffer[2] = (byte)(length >> 8);
+            buffer[3] = (byte)(length & 0xff);
+            apdu.setOutgoingLength((short) 4);
+            apdu.sendBytes((short) 0, (short) 4);
+            return 0x0;
+        }
         try {
-            Util.setShort(working, (short) 0, (short)lockStorage.length);
-            apdu.sendBytesLong(working, (short) 0, (short) 2);
-            length -= 2;
+            apdu.setOutgoingLength(length);
         } catch (CardRuntimeException e) {
-            ISOException.throwIt(length);
+            return 0x0101;
         }
-
         try {
-          apdu.sendBytesLong(lockStorage, (short) 0, (short) lockStorage.length);
-          length -= (short) lockStorage.length;
+            Util.setShort(buffer, (short) 0, (short) 0x0);
+            apdu.sendBytes((short) 0, (short) 2);
+            for (i = 0; i < count; ++i) {
+                Util.arrayFillNonAtomic(buffer, (short) 2, slotBytes,
+                                        (byte) 0x00);
+                Util.setShort(buffer, (short) 0,
+                              versionStorage.getSlot(query[i], buffer,
+                                                     (short) 2));
+                apdu.sendBytes((short) 0, (short)(2 + slotBytes));
+            }
         } catch (CardRuntimeException e) {
             ISOException.throwIt(length);
         }
-        if (length != 0) {
-            ISOException.throwIt(length);
-        }
         return 0;
     }
 
@@ -372,16 +575,13 @@ public class Storage extends Applet implements ExtendedLength, Shareable {
         }
         short length = (short)(3 + locks[p1].metadataLength());
         try {
-            byte[] resp_val = new byte[1];
             apdu.setOutgoing();
             apdu.setOutgoingLength(length);
 
-            // Send a successful response code.
-            resp_val[0] = (byte) 0x00;
-            apdu.sendBytesLong(resp_val, (short) 0, (short) 1);
-            apdu.sendBytesLong(resp_val, (short) 0, (short) 1);
-            // Then the lock byte.
-            apdu.sendBytesLong(lockStorage, locks[p1].lockOffset(), (short) 1);
+            // Send a successful response code and then the lock byte.
+            Util.setShort(buffer, (short) 0, (short) 0x0);
+            buffer[2] = lockStorage[locks[p1].lockOffset()];
+            apdu.sendBytes((short) 0, (short) 3);
             // Then any exported metadata.  Note that the metadataOffset may
             // exclude some data which is considered private to the lock.
             apdu.sendBytesLong(lockStorage, locks[p1].metadataOffset(),
@@ -491,7 +691,7 @@ public class Storage extends Applet implements ExtendedLength, Shareable {
             buffer[1] = (byte)(resp & 0xff);
             length = 2;
             if (resp == 0) {
-                length += (short) VersionStorage.SLOT_BYTES;
+                length += (short) versionStorage.slotBytes();
             }
             // Always send the two bytes of status as they are more
             // useful than the APDU error.
@@ -571,6 +771,28 @@ public class Storage extends Applet implements ExtendedLength, Shareable {
             Util.arrayFillNonAtomic(lockStorage, (short) 0,
                                     (short) lockStorage.length, (byte) 0x00);
             return;
+        /* batchSlots(read|update) { id... | (id, value)... } */
+        case INS_BATCH_SLOTS:
+            if (numBytes != availableBytes) {
+                sendResponseCode(apdu, (short)0x0101);
+                return;
+            }
+            resp = handleSlotBatch(apdu, p1, numBytes);
+            if (resp != 0) {
+                sendResponseCode(apdu, resp);
+            }
+            return;
+        /* queryState() { (tag, 0x01, id)... } */
+        case INS_QUERY_STATE:
+            if (numBytes != availableBytes) {
+                sendResponseCode(apdu, (short)0x0101);
+                return;
+            }
+            resp = sendQueriedState(apdu, numBytes);
+            if (resp != 0) {
+                sendResponseCode(apdu, resp);
+            }
+            return;
         /* load_meta(new|append) {} */
         case INS_LOAD_META:
             if (p1 == LOAD_META_CLEAR) {
@@ -609,10 +831,9 @@ public class Storage extends Applet implements ExtendedLength, Shareable {
     /**
      * Restores data across upgrades
      *
-     * @param buffer bytes
      * @return true on success and false on failure.
      */
-    private boolean restore(byte[] buffer) {
-        return osBackupImpl.restore(buffer, (short) 0);
+    private boolean restore() {
+        return osBackupImpl.restore(reservedMetadata, (short) 0);
     }
 }
@@ -17,24 +17,62 @@
 package com.android.verifiedboot.storage;
 
 import javacard.framework.CardRuntimeException;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
 import javacard.framework.Util;
 
 import com.android.verifiedboot.storage.BackupInterface;
 import com.android.verifiedboot.globalstate.owner.OwnerInterface;
 
 class VersionStorage implements BackupInterface {
-    final public static byte NUM_SLOTS = (byte) 8;
-    final public static byte SLOT_BYTES = (byte) 8;
-    final private static byte EXPORT_VERSION = (byte)0x01;
+    final public static byte DEFAULT_NUM_SLOTS = (byte) 8;
+    final public static byte DEFAULT_SLOT_BYTES = (byte) 8;
+    // Keeps a batch update of every slot within a typical commit buffer.
+    final public static byte MAX_NUM_SLOTS = (byte) 32;
+    final public static byte MAX_SLOT_BYTES = (byte) 32;
+    final private static byte LEGACY_BACKUP_VERSION = (byte) 0x01;
+    final private static byte BACKUP_VERSION = (byte) 0x02;
     private OwnerInterface globalState;
     private byte[] storage;
+    private byte numSlots;
+    private byte slotBytes;
+    // Per-entry results of the batch in progress in setSlots().
+    private short[] results;
 
-    public VersionStorage(OwnerInterface globalStateRef) {
-      storage = new byte[NUM_SLOTS * SLOT_BYTES];
+    /**
+     * @param globalStateRef policy source for slot updates.
+     * @param slots number of slots, at most MAX_NUM_SLOTS.
+     * @param bytesPerSlot size of each slot, at most MAX_SLOT_BYTES.
+     */
+    public VersionStorage(OwnerInterface globalStateRef, byte slots, byte bytesPerSlot) {
+      if (slots < (byte) 1 || slots > MAX_NUM_SLOTS ||
+          bytesPerSlot < (byte) 1 || bytesPerSlot > MAX_SLOT_BYTES) {
+          ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+      }
+      numSlots = slots;
+      slotBytes = bytesPerSlot;
+      storage = new byte[(short)(numSlots * slotBytes)];
+      results = JCSystem.makeTransientShortArray((short) numSlots,
+                                                 JCSystem.CLEAR_ON_DESELECT);
       globalState = globalStateRef;
       Util.arrayFillNonAtomic(storage, (short) 0, (short) storage.length, (byte) 0x00);
     }
 
+    /**
+     * @return the number of slots.
+     */
+    public byte numSlots() {
+        return numSlots;
+    }
+
+    /**
+     * @return the size of each slot in bytes.
+     */
+    public byte slotBytes() {
+        return slotBytes;
+    }
+
     /**
      * Copies content from the given slot in |out| and returns true.
      *
@@ -44,12 +82,12 @@ class VersionStorage implements BackupInterface {
      * @return 0x0 on success and an error otherwise.
      */
     public short getSlot(byte slot, byte[] out, short oOffset) {
-        if (slot > NUM_SLOTS - 1) {
+        if (slot < (byte) 0 || slot >= numSlots) {
             return 0x0001;
         }
         try {
-            Util.arrayCopy(storage, (short)(SLOT_BYTES * slot),
-                         out, oOffset, SLOT_BYTES);
+            Util.arrayCopy(storage, (short)(slotBytes * slot),
+                         out, oOffset, slotBytes);
         } catch (CardRuntimeException e) {
             return 0x0002;
         }
@@ -65,7 +103,7 @@ class VersionStorage implements BackupInterface {
      * @return 0x0 on success or an error code.
      */
     public short setSlot(byte slot, byte[] in, short iOffset) {
-        if (slot > NUM_SLOTS - 1) {
+        if (slot < (byte) 0 || slot >= numSlots) {
             return 0x0001;
         }
         // Slots can be set only if we're in the bootloader
@@ -76,29 +114,148 @@ class VersionStorage implements BackupInterface {
         }
         try {
             Util.arrayCopy(in, iOffset,
-                     storage, (short)(SLOT_BYTES * slot), SLOT_BYTES);
+                     storage, (short)(slotBytes * slot), slotBytes);
         } catch (CardRuntimeException e) {
             return 0x0002;
         }
         return 0;
     }
 
+    /**
+     * Updates several slots at once, or none of them.
+     *
+     * Each entry in |in| is a slot number followed by slotBytes() of new
+     * value.  Values are little-endian, as written by the C client, and
+     * may only stay the same or grow.  If every entry is acceptable, all
+     * of them are written under a single transaction.  Otherwise nothing
+     * is written.
+     *
+     * One result (short) per entry is written to |out|, which may overlap
+     * |in| as the entries are consumed before any result is written:
+     *   0x0 the entry is acceptable (and was written if 0 is returned)
+     *   0x0001 invalid slot
+     *   0x0003 slots are not writable in the current state
+     *   0x0004 the value is lower than the stored one
+     *   0x0005 the slot appears more than once in the batch
+     *
+     * @param in array holding the entries.
+     * @param iOffset offset of the first entry.
+     * @param count number of entries, at most numSlots().
+     * @param out array to write the per-entry results to.
+     * @param oOffset offset into |out| for the first result.
+     * @return the number of rejected entries, or -1 if |count| is invalid.
+     */
+    public short setSlots(byte[] in, short iOffset, short count,
+                          byte[] out, short oOffset) {
+        if (count < (short) 1 || count > (short) numSlots) {
+            return (short) -1;
+        }
+        final short entryBytes = (short)(1 + slotBytes);
+        boolean writable = (globalState.production() == false ||
+                            globalState.inBootloader() == true);
+        short rejected = 0;
+        short i;
+        short j;
+        short entry;
+        byte slot;
+        for (i = 0; i < count; ++i) {
+            entry = (short)(iOffset + (short)(i * entryBytes));
+            slot = in[entry];
+            results[i] = 0;
+            if (slot < (byte) 0 || slot >= numSlots) {
+                results[i] = 0x0001;
+            } else if (writable == false) {
+                results[i] = 0x0003;
+            } else if (isLower(in, (short)(entry + 1),
+                               (short)(slotBytes * slot))) {
+                results[i] = 0x0004;
+            } else {
+                for (j = 0; j < i; ++j) {
+                    if (in[(short)(iOffset + (short)(j * entryBytes))] == slot) {
+                        results[i] = 0x0005;
+                        break;
+                    }
+                }
+            }
+            if (results[i] != 0) {
+                rejected++;
+            }
+        }
+
+        if (rejected == 0) {
+            JCSystem.beginTransaction();
+            for (i = 0; i < count; ++i) {
+                entry = (short)(iOffset + (short)(i * entryBytes));
+                Util.arrayCopy(in, (short)(entry + 1), storage,
+                               (short)(slotBytes * in[entry]), slotBytes);
+            }
+            JCSystem.commitTransaction();
+        }
+
+        for (i = 0; i < count; ++i) {
+            Util.setShort(out, (short)(oOffset + (short)(2 * i)), results[i]);
+        }
+        return rejected;
+    }
+
+    /**
+     * Returns true if the little-endian value at |in|[iOffset] is lower
+     * than the one stored at |storage|[sOffset].
+     */
+    private boolean isLower(byte[] in, short iOffset, short sOffset) {
+        short i = (short)(slotBytes - 1);
+        for ( ; i >= 0; --i) {
+            short value = (short)(in[(short)(iOffset + i)] & 0xff);
+            short stored = (short)(storage[(short)(sOffset + i)] & 0xff);
+            if (value != stored) {
+                return value < stored;
+            }
+        }
+        return false;
+    }
+
     /**
      * {@inheritDoc}
      *
-     * Checks the size and version prefix prior to copying.
+     * Version 1 data is a byte that was never set followed by the default
+     * slots.  Version 2 data records its own slot layout.  Slots are copied
+     * into a larger layout as is, which keeps their little-endian values,
+     * but never into smaller slots.  Slots beyond numSlots() are dropped.
      */
     @Override
-    public boolean restore(byte[] inBytes, short inBytesOffset, short inBytesLength) {
-        if (inBytesLength == (short) 0 ||
-            inBytesLength > (short)(storage.length + 1)) {
+    public boolean restore(byte version, byte[] inBytes, short inBytesOffset,
+                           short inBytesLength) {
+        byte oldSlots;
+        byte oldSlotBytes;
+        short dataOffset;
+        if (version == LEGACY_BACKUP_VERSION) {
+            oldSlots = DEFAULT_NUM_SLOTS;
+            oldSlotBytes = DEFAULT_SLOT_BYTES;
+            dataOffset = (short)(inBytesOffset + 1);
+        } else if (version == BACKUP_VERSION && inBytesLength >= (short) 2) {
+            oldSlots = inBytes[inBytesOffset];
+            oldSlotBytes = inBytes[(short)(inBytesOffset + 1)];
+            dataOffset = (short)(inBytesOffset + 2);
+        } else {
             return false;
         }
-        if (inBytes[0] != EXPORT_VERSION) {
+        if (oldSlots < (byte) 1 || oldSlots > MAX_NUM_SLOTS ||
+            oldSlotBytes < (byte) 1 || oldSlotBytes > slotBytes ||
+            (short)(dataOffset - inBytesOffset + (short)(oldSlots * oldSlotBytes))
+                != inBytesLength) {
             return false;
         }
+        if (oldSlots > numSlots) {
+            oldSlots = numSlots;
+        }
         try {
-            Util.arrayCopy(inBytes, inBytesOffset, storage, (short) 0, inBytesLength);
+            Util.arrayFillNonAtomic(storage, (short) 0, (short) storage.length,
+                                    (byte) 0x00);
+            byte slot;
+            for (slot = 0; slot < oldSlots; ++slot) {
+                Util.arrayCopy(inBytes, (short)(dataOffset + (short)(slot * oldSlotBytes)),
+                               storage, (short)(slot * slotBytes), oldSlotBytes);
+            }
         } catch (CardRuntimeException e) {
             return false;
         }
@@ -108,18 +265,17 @@ class VersionStorage implements BackupInterface {
     /**
      * {@inheritDoc}
      *
-     * Copies storage to outBytes with a leading version byte which can be
-     * checked on restore.
+     * Copies storage to outBytes after the slot count and size so that it
+     * can be restored into a differently configured applet.
      */
     @Override
     public short backup(byte[] outBytes, short outBytesOffset) {
         try {
-            // Tag the export version that way if any internal storage format changes
-            // occur, they can be handled.
-            outBytes[(short)(outBytesOffset + 1)] = EXPORT_VERSION;
-            Util.arrayCopy(storage, (short) 0, outBytes, (short)(outBytesOffset + 1),
+            outBytes[outBytesOffset] = numSlots;
+            outBytes[(short)(outBytesOffset + 1)] = slotBytes;
+            Util.arrayCopy(storage, (short) 0, outBytes, (short)(outBytesOffset + 2),
                            (short)storage.length);
-            return (short)(storage.length + 1);
+            return (short)(storage.length + 2);
         } catch (CardRuntimeException e) {
             return 0x0;
         }
@@ -130,6 +286,14 @@ class VersionStorage implements BackupInterface {
      */
     @Override
     public short backupSize() {
-      return (short)(storage.length + 1);
+      return (short)(storage.length + 2);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte backupVersion() {
+      return BACKUP_VERSION;
     }
 }
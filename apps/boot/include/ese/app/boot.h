@@ -54,7 +54,8 @@ struct EseBootSession {
 
 /**
  * The Storage applet supports up to 8 64-bit storage slots for storing
- * rollback protection indices.
+ * rollback protection indices.  This is the default; the applet may be
+ * installed with a different slot count and size.
  */
 const uint8_t kEseBootRollbackSlotCount = 8;
 /**
@@ -77,6 +78,20 @@ typedef enum {
   kEseBootLockIdMax = kEseBootLockIdOwner,
 } EseBootLockId;
 
+/* Keep in sync with card/src/com/android/verifiedboot/storage/Storage.java */
+/**
+ * Item tags understood by ese_boot_query_state().
+ */
+typedef enum {
+  kEseBootQueryLock = 1,  /* Lock byte and a SHA-256 of its metadata. */
+  kEseBootQueryLockMetadata,  /* Lock byte and its metadata. */
+  kEseBootQueryVersionSlot,  /* Rollback storage slot. */
+} EseBootQueryTag;
+/**
+ * At most this many items may be requested per ese_boot_query_state() call.
+ */
+const uint8_t kEseBootQueryItemMax = 16;
+
 
 /**
  * Initializes a pre-allocated |session| for use.
@@ -175,6 +190,25 @@ EseAppResult ese_boot_set_production(struct EseBootSession *session, bool produc
  */
 EseAppResult ese_boot_get_state(struct EseBootSession *session, uint8_t *state, uint16_t maxSize);
 
+/**
+ * Requests only the listed pieces of applet state.
+ *
+ * |query| is a list of |queryLen| bytes made of 3 byte items: an
+ * EseBootQueryTag, 0x01, and the lock id or rollback slot.
+ *
+ * On success, |reply| holds one (tag, 16-bit big-endian length, value) item
+ * per requested item, in the order requested, and |*replyLen| is set to the
+ * bytes used.  Lock values begin with the id and the lock byte.  For
+ * kEseBootQueryLock, they end with a SHA-256 of the lock metadata, if any,
+ * so that changes can be detected without reading it.
+ *
+ * @returns ESE_APP_RESULT_OK on success.
+ */
+EseAppResult ese_boot_query_state(struct EseBootSession *session,
+                                  const uint8_t *query, uint8_t queryLen,
+                                  uint8_t *reply, uint16_t maxSize,
+                                  uint16_t *replyLen);
+
 /**
  * Stores |value| in the specified |slot| in the applet.
  *
@@ -182,6 +216,22 @@ EseAppResult ese_boot_get_state(struct EseBootSession *session, uint8_t *state,
  */
 EseAppResult ese_boot_rollback_index_write(struct EseBootSession *session, uint8_t slot, uint64_t value);
 
+/**
+ * Stores |count| |values| in the matching |slots| in a single applet
+ * transaction.  Values may only stay the same or grow, and each slot may
+ * appear only once.  If any entry is refused, no slot is changed.
+ *
+ * When |results| is not NULL, it receives one applet result code per entry
+ * (0 when the entry was acceptable).
+ *
+ * @returns ESE_APP_RESULT_OK if every slot was written.
+ */
+EseAppResult ese_boot_rollback_index_write_batch(struct EseBootSession *session,
+                                                 const uint8_t *slots,
+                                                 const uint64_t *values,
+                                                 uint8_t count,
+                                                 uint16_t *results);
+
 /**
  * Reads a uint64_t from |slot| into |value|.
  *
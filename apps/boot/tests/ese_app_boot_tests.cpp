@@ -160,3 +160,194 @@ TEST_F(BootAppTest, EseBootSessionOpenSelectFailure) {
   trans_.invocations[1].rx[1] = 0x01;
   EXPECT_EQ(ESE_APP_RESULT_ERROR_OS, ese_boot_session_open(&ese_, &session));
 };
+
+class BootAppSessionTest : public BootAppTest {
+ public:
+  void SetUp() {
+    BootAppTest::SetUp();
+    EXPECT_EQ(0, ese_open(&ese_, NULL));
+    // Act as if ese_boot_session_open() got channel 1.
+    ese_boot_session_init(&session_);
+    session_.ese = &ese_;
+    session_.active = true;
+    session_.channel_id = 0x01;
+  }
+
+ protected:
+  struct EseBootSession session_;
+};
+
+TEST_F(BootAppSessionTest, EseBootQueryStateSuccess) {
+  const uint8_t query[] = {kEseBootQueryVersionSlot, 0x01, 0x02,
+                           kEseBootQueryLock, 0x01, 0x00};
+  const uint8_t items[] = {
+    // Slot 2.
+    kEseBootQueryVersionSlot, 0x00, 0x09, 0x02,
+    0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+    // Lock 0 without metadata.
+    kEseBootQueryLock, 0x00, 0x02, 0x00, 0x01,
+  };
+  trans_.invocations.resize(1);
+  trans_.invocations[0].expected_tx = {
+    0x81, 0x12, 0x00, 0x00,  // CLA on channel 1, INS, P1, P2
+    0x00, 0x00, sizeof(query),  // Extended Lc
+  };
+  trans_.invocations[0].expected_tx.insert(
+      trans_.invocations[0].expected_tx.end(), query, query + sizeof(query));
+  // Extended Le leaves room for the applet status.
+  trans_.invocations[0].expected_tx.push_back(0x00);
+  trans_.invocations[0].expected_tx.push_back(0x42);
+  trans_.invocations[0].rx = {0x00, 0x00};
+  trans_.invocations[0].rx.insert(trans_.invocations[0].rx.end(), items,
+                                  items + sizeof(items));
+  trans_.invocations[0].rx.push_back(0x90);
+  trans_.invocations[0].rx.push_back(0x00);
+
+  uint8_t reply[64];
+  uint16_t reply_len = 0;
+  EXPECT_EQ(ESE_APP_RESULT_OK,
+            ese_boot_query_state(&session_, query, sizeof(query), reply,
+                                 sizeof(reply), &reply_len));
+  EXPECT_EQ(sizeof(items), reply_len);
+  EXPECT_EQ(0, memcmp(items, reply, sizeof(items)));
+  EXPECT_EQ(0UL, trans_.invocations.size());
+};
+
+TEST_F(BootAppSessionTest, EseBootQueryStateInvalidQuery) {
+  // Items are 3 bytes long.
+  const uint8_t query[] = {kEseBootQueryLock, 0x01};
+  uint8_t reply[64];
+  uint16_t reply_len = 0;
+  EXPECT_EQ(ESE_APP_RESULT_ERROR_ARGUMENTS,
+            ese_boot_query_state(&session_, query, sizeof(query), reply,
+                                 sizeof(reply), &reply_len));
+};
+
+TEST_F(BootAppSessionTest, EseBootQueryStateShortResponse) {
+  const uint8_t query[] = {kEseBootQueryLock, 0x01, 0x00};
+  trans_.invocations.resize(1);
+  trans_.invocations[0].expected_tx = {
+    0x81, 0x12, 0x00, 0x00, 0x00, 0x00, sizeof(query),
+    kEseBootQueryLock, 0x01, 0x00, 0x00, 0x42,
+  };
+  // An applet status with a single byte of data.
+  trans_.invocations[0].rx = {0x00, 0x00, 0x90};
+
+  uint8_t reply[64];
+  uint16_t reply_len = 0;
+  EXPECT_EQ(ESE_APP_RESULT_ERROR_COMM_FAILED,
+            ese_boot_query_state(&session_, query, sizeof(query), reply,
+                                 sizeof(reply), &reply_len));
+  EXPECT_EQ(0, reply_len);
+};
+
+TEST_F(BootAppSessionTest, EseBootQueryStateAppletError) {
+  const uint8_t query[] = {kEseBootQueryLock, 0x01, 0x07};
+  trans_.invocations.resize(1);
+  trans_.invocations[0].expected_tx = {
+    0x81, 0x12, 0x00, 0x00, 0x00, 0x00, sizeof(query),
+    kEseBootQueryLock, 0x01, 0x07, 0x00, 0x42,
+  };
+  // Unknown lock id.
+  trans_.invocations[0].rx = {0x00, 0x03, 0x90, 0x00};
+
+  uint8_t reply[64];
+  uint16_t reply_len = 0;
+  EXPECT_EQ(ese_make_app_result(0x00, 0x03),
+            ese_boot_query_state(&session_, query, sizeof(query), reply,
+                                 sizeof(reply), &reply_len));
+  EXPECT_EQ(0, reply_len);
+};
+
+TEST_F(BootAppSessionTest, EseBootQueryStateSeError) {
+  const uint8_t query[] = {kEseBootQueryLock, 0x01, 0x00};
+  trans_.invocations.resize(1);
+  trans_.invocations[0].expected_tx = {
+    0x81, 0x12, 0x00, 0x00, 0x00, 0x00, sizeof(query),
+    kEseBootQueryLock, 0x01, 0x00, 0x00, 0x42,
+  };
+  trans_.invocations[0].rx = {0x6A, 0x83};
+
+  uint8_t reply[64];
+  uint16_t reply_len = 0;
+  EXPECT_EQ(ESE_APP_RESULT_ERROR_UNCONFIGURED,
+            ese_boot_query_state(&session_, query, sizeof(query), reply,
+                                 sizeof(reply), &reply_len));
+};
+
+class BootAppWriteBatchTest : public BootAppSessionTest {
+ public:
+  void SetUp() {
+    BootAppSessionTest::SetUp();
+    trans_.invocations.resize(1);
+    trans_.invocations[0].expected_tx = {
+      0x81, 0x14, 0x01, 0x00,  // CLA on channel 1, INS, P1 (update), P2
+      0x12,  // Lc
+      // Slot 0 and its little-endian value.
+      0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+      // Slot 3.
+      0x03, 0x08, 0x07, 0x06, 0x05, 0x04, 0x03, 0x02, 0x01,
+      0x00,  // Le
+    };
+  }
+
+ protected:
+  const uint8_t slots_[2] = {0, 3};
+  const uint64_t values_[2] = {1, 0x0102030405060708ULL};
+  uint16_t results_[2] = {0xffff, 0xffff};
+};
+
+TEST_F(BootAppWriteBatchTest, EseBootRollbackIndexWriteBatchSuccess) {
+  trans_.invocations[0].rx = {0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x90, 0x00};
+  EXPECT_EQ(ESE_APP_RESULT_OK,
+            ese_boot_rollback_index_write_batch(&session_, slots_, values_, 2,
+                                                results_));
+  EXPECT_EQ(0, results_[0]);
+  EXPECT_EQ(0, results_[1]);
+  EXPECT_EQ(0UL, trans_.invocations.size());
+};
+
+TEST_F(BootAppWriteBatchTest, EseBootRollbackIndexWriteBatchRejected) {
+  // The second value is lower than the stored one so nothing was written.
+  trans_.invocations[0].rx = {0x00, 0x03, 0x00, 0x00, 0x00, 0x04, 0x90, 0x00};
+  EXPECT_EQ(ese_make_app_result(0x00, 0x03),
+            ese_boot_rollback_index_write_batch(&session_, slots_, values_, 2,
+                                                results_));
+  EXPECT_EQ(0, results_[0]);
+  EXPECT_EQ(4, results_[1]);
+};
+
+TEST_F(BootAppWriteBatchTest, EseBootRollbackIndexWriteBatchShortResponse) {
+  // Only one of the two entry results.
+  trans_.invocations[0].rx = {0x00, 0x00, 0x00, 0x00, 0x90, 0x00};
+  EXPECT_EQ(ESE_APP_RESULT_ERROR_COMM_FAILED,
+            ese_boot_rollback_index_write_batch(&session_, slots_, values_, 2,
+                                                results_));
+  EXPECT_EQ(0xffff, results_[0]);
+  EXPECT_EQ(0xffff, results_[1]);
+};
+
+TEST_F(BootAppWriteBatchTest, EseBootRollbackIndexWriteBatchAppletError) {
+  // The applet refused the request as a whole, so there are no entry results.
+  trans_.invocations[0].rx = {0x00, 0x02, 0x90, 0x00};
+  EXPECT_EQ(ese_make_app_result(0x00, 0x02),
+            ese_boot_rollback_index_write_batch(&session_, slots_, values_, 2,
+                                                results_));
+  EXPECT_EQ(0xffff, results_[0]);
+  EXPECT_EQ(0xffff, results_[1]);
+};
+
+TEST_F(BootAppWriteBatchTest, EseBootRollbackIndexWriteBatchSeError) {
+  trans_.invocations[0].rx = {0x6A, 0x83};
+  EXPECT_EQ(ESE_APP_RESULT_ERROR_UNCONFIGURED,
+            ese_boot_rollback_index_write_batch(&session_, slots_, values_, 2,
+                                                results_));
+};
+
+TEST_F(BootAppSessionTest, EseBootRollbackIndexWriteBatchInvalidCount) {
+  const uint8_t slots[] = {0};
+  const uint64_t values[] = {1};
+  EXPECT_EQ(ESE_APP_RESULT_ERROR_ARGUMENTS,
+            ese_boot_rollback_index_write_batch(&session_, slots, values, 0,
+                                                NULL));
+};
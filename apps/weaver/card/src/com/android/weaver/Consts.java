@@ -27,6 +27,10 @@ public class Consts {
     public static final byte READ_WRONG_KEY = 0x7f;
     public static final byte READ_BACK_OFF = 0x76;
 
+    // Batch write and erase status (one byte per entry of the response)
+    public static final byte BATCH_SUCCESS = 0x00;
+    public static final byte BATCH_FAILED = 0x01;
+
     // Errors
     public static final short SW_INVALID_SLOT_ID = 0x6a86;
 
@@ -36,4 +40,7 @@ public class Consts {
     public static final byte INS_READ = 0x6;
     public static final byte INS_ERASE_VALUE = 0x8;
     public static final byte INS_ERASE_ALL = 0xa;
+    public static final byte INS_WRITE_BATCH = 0xc;
+    public static final byte INS_READ_BATCH = 0xe;
+    public static final byte INS_ERASE_VALUE_BATCH = 0x10;
 }
@@ -19,13 +19,15 @@ package com.android.weaver;
 import javacard.framework.AID;
 import javacard.framework.APDU;
 import javacard.framework.Applet;
+import javacard.framework.CardRuntimeException;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.Shareable;
 import javacard.framework.Util;
+import javacardx.apdu.ExtendedLength;
 
-public class Weaver extends Applet {
+public class Weaver extends Applet implements ExtendedLength {
     // Keep constants in sync with esed
     // Uses the full AID which needs to be kept in sync on updates.
     public static final byte[] CORE_APPLET_AID
@@ -35,6 +37,9 @@ public class Weaver extends Applet {
 
     public static final byte CORE_APPLET_SLOTS_INTERFACE = 0;
 
+    // The binding to the core applet is kept across selects. Holding the core applet's shareable
+    // interface object in a persistent field keeps the core applet instance from being deleted,
+    // so this applet has to be deleted before the core applet can be reinstalled.
     private Slots mSlots;
 
     protected Weaver() {
@@ -53,11 +58,10 @@ public class Weaver extends Applet {
     }
 
     /**
-     * Get a handle on the slots after the applet is registered but before and APDUs are received.
+     * The handle on the slots is kept from the previous session and checked by the first APDU.
      */
     @Override
     public boolean select() {
-      mSlots = null;
       return true;
     }
 
@@ -69,18 +73,8 @@ public class Weaver extends Applet {
      */
     @Override
     public void process(APDU apdu) {
-        // TODO(drewry,ascull) Move this back into select.
         if (mSlots == null) {
-            AID coreAid = JCSystem.lookupAID(CORE_APPLET_AID, (short) 0, (byte) CORE_APPLET_AID.length);
-            if (coreAid == null) {
-                ISOException.throwIt((short)0x0010);
-            }
-
-            mSlots = (Slots) JCSystem.getAppletShareableInterfaceObject(
-                    coreAid, CORE_APPLET_SLOTS_INTERFACE);
-            if (mSlots == null) {
-                ISOException.throwIt((short)0x0012);
-            }
+            bindSlots();
         }
 
 
@@ -100,32 +94,78 @@ public class Weaver extends Applet {
         }
 
         // Handle custom applet commands
-        switch (ins) {
-            case Consts.INS_GET_NUM_SLOTS:
-                getNumSlots(apdu);
-                return;
+        try {
+            switch (ins) {
+                case Consts.INS_GET_NUM_SLOTS:
+                    getNumSlots(apdu);
+                    return;
 
-            case Consts.INS_WRITE:
-                write(apdu);
-                return;
+                case Consts.INS_WRITE:
+                    write(apdu);
+                    return;
 
-            case Consts.INS_READ:
-                read(apdu);
-                return;
+                case Consts.INS_READ:
+                    read(apdu);
+                    return;
 
-            case Consts.INS_ERASE_VALUE:
-                eraseValue(apdu);
-                return;
+                case Consts.INS_ERASE_VALUE:
+                    eraseValue(apdu);
+                    return;
+
+                case Consts.INS_ERASE_ALL:
+                    eraseAll(apdu);
+                    return;
 
-            case Consts.INS_ERASE_ALL:
-                eraseAll(apdu);
-                return;
+                case Consts.INS_WRITE_BATCH:
+                    writeBatch(apdu);
+                    return;
+
+                case Consts.INS_READ_BATCH:
+                    readBatch(apdu);
+                    return;
 
-            default:
-                ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+                case Consts.INS_ERASE_VALUE_BATCH:
+                    eraseValueBatch(apdu);
+                    return;
+
+                default:
+                    ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+            }
+        } catch (SecurityException e) {
+            // The shareable interface has been revoked so bind again on the next APDU.
+            unbindSlots();
+            ISOException.throwIt((short)0x0012);
         }
     }
 
+    /**
+     * Get a handle on the slots of the core applet.
+     *
+     * This only happens when there is no binding yet, or after the core applet revoked it, so
+     * later sessions go straight to the slots.
+     */
+    private void bindSlots() {
+        final AID coreAid =
+                JCSystem.lookupAID(CORE_APPLET_AID, (short) 0, (byte) CORE_APPLET_AID.length);
+        if (coreAid == null) {
+            ISOException.throwIt((short)0x0010);
+        }
+
+        final Slots slots = (Slots) JCSystem.getAppletShareableInterfaceObject(
+                coreAid, CORE_APPLET_SLOTS_INTERFACE);
+        if (slots == null) {
+            ISOException.throwIt((short)0x0012);
+        }
+        mSlots = slots;
+    }
+
+    /**
+     * Drop the binding so the next APDU requests the shareable interface again.
+     */
+    private void unbindSlots() {
+        mSlots = null;
+    }
+
     /**
      * Get the number of slots.
      *
@@ -149,7 +189,9 @@ public class Weaver extends Applet {
 
     public static final short WRITE_DATA_BYTES
             = Consts.SLOT_ID_BYTES + Consts.SLOT_KEY_BYTES + Consts.SLOT_VALUE_BYTES;
-    private static final byte WRITE_DATA_SLOT_ID_OFFSET = ISO7816.OFFSET_CDATA;
+    // Offsets into the command data, which starts at apdu.getOffsetCdata() as the command may use
+    // the extended length format.
+    private static final byte WRITE_DATA_SLOT_ID_OFFSET = 0;
     private static final byte WRITE_DATA_KEY_OFFSET
             = WRITE_DATA_SLOT_ID_OFFSET + Consts.SLOT_ID_BYTES;
     private static final byte WRITE_DATA_VALUE_OFFSET
@@ -167,15 +209,18 @@ public class Weaver extends Applet {
         receiveData(apdu, WRITE_DATA_BYTES);
 
         final byte buffer[] = apdu.getBuffer();
-        final short slotId = getSlotId(buffer, WRITE_DATA_SLOT_ID_OFFSET);
-        mSlots.write(slotId, buffer, WRITE_DATA_KEY_OFFSET, buffer, WRITE_DATA_VALUE_OFFSET);
+        final short dataOffset = apdu.getOffsetCdata();
+        final short slotId = getSlotId(buffer, (short) (dataOffset + WRITE_DATA_SLOT_ID_OFFSET));
+        mSlots.write(slotId, buffer, (short) (dataOffset + WRITE_DATA_KEY_OFFSET),
+                buffer, (short) (dataOffset + WRITE_DATA_VALUE_OFFSET));
     }
 
     public static final short READ_DATA_BYTES
             = Consts.SLOT_ID_BYTES + Consts.SLOT_KEY_BYTES;
-    private static final byte READ_DATA_SLOT_ID_OFFSET = ISO7816.OFFSET_CDATA;
+    // Offsets into the command data.
+    private static final byte READ_DATA_SLOT_ID_OFFSET = 0;
     private static final byte READ_DATA_KEY_OFFSET
-            = WRITE_DATA_SLOT_ID_OFFSET + Consts.SLOT_ID_BYTES;
+            = READ_DATA_SLOT_ID_OFFSET + Consts.SLOT_ID_BYTES;
 
     /**
      * Read a slot.
@@ -193,9 +238,11 @@ public class Weaver extends Applet {
         prepareToSend(apdu, successSize);
 
         final byte buffer[] = apdu.getBuffer();
-        final short slotId = getSlotId(buffer, READ_DATA_SLOT_ID_OFFSET);
+        final short dataOffset = apdu.getOffsetCdata();
+        final short slotId = getSlotId(buffer, (short) (dataOffset + READ_DATA_SLOT_ID_OFFSET));
 
-        final byte err = mSlots.read(slotId, buffer, READ_DATA_KEY_OFFSET, buffer, (short) 1);
+        final byte err = mSlots.read(slotId, buffer, (short) (dataOffset + READ_DATA_KEY_OFFSET),
+                buffer, (short) 1);
         buffer[(short) 0] = err;
         if (err == Consts.READ_SUCCESS) {
             apdu.setOutgoingLength(successSize);
@@ -207,7 +254,8 @@ public class Weaver extends Applet {
     }
 
     public static final short ERASE_VALUE_BYTES = Consts.SLOT_ID_BYTES;
-    private static final byte ERASE_VALUE_SLOT_ID_OFFSET = ISO7816.OFFSET_CDATA;
+    // Offset into the command data.
+    private static final byte ERASE_VALUE_SLOT_ID_OFFSET = 0;
 
     /**
      * Erase the value of a slot.
@@ -221,7 +269,8 @@ public class Weaver extends Applet {
         receiveData(apdu, ERASE_VALUE_BYTES);
 
         final byte buffer[] = apdu.getBuffer();
-        final short slotId = getSlotId(buffer, READ_DATA_SLOT_ID_OFFSET);
+        final short slotId = getSlotId(
+                buffer, (short) (apdu.getOffsetCdata() + ERASE_VALUE_SLOT_ID_OFFSET));
         mSlots.eraseValue(slotId);
     }
 
@@ -238,6 +287,170 @@ public class Weaver extends Applet {
         mSlots.eraseAll();
     }
 
+    public static final short READ_BATCH_RESPONSE_BYTES = 1 + Consts.SLOT_VALUE_BYTES;
+
+    /**
+     * Write to several slots. Each slot is written atomically as in write(), the batch as a whole
+     * is not.
+     *
+     * The response has a status byte for each slot in the order of the request, either
+     * BATCH_SUCCESS or BATCH_FAILED if that slot was left as it was.
+     *
+     * p1: 0
+     * p2: 0
+     * data: ([slot ID] [key data] [value data])+
+     */
+    private void writeBatch(APDU apdu) {
+        p1p2Unused(apdu);
+        final short count = receiveBatch(apdu, WRITE_DATA_BYTES);
+        prepareToSendBatch(apdu, count);
+
+        // Each status byte is written after its entry has been consumed and before the next one,
+        // so the output never overwrites input that is still to be read.
+        final byte buffer[] = apdu.getBuffer();
+        short offset = apdu.getOffsetCdata();
+        for (short i = 0; i < count; ++i) {
+            byte status = Consts.BATCH_SUCCESS;
+            try {
+                final short slotId = getSlotId(buffer, offset);
+                final short keyOffset = (short) (offset + Consts.SLOT_ID_BYTES);
+                mSlots.write(slotId, buffer, keyOffset,
+                        buffer, (short) (keyOffset + Consts.SLOT_KEY_BYTES));
+            } catch (CardRuntimeException e) {
+                status = batchEntryFailed();
+            }
+            buffer[i] = status;
+            offset += WRITE_DATA_BYTES;
+        }
+        apdu.setOutgoingLength(count);
+        apdu.sendBytes((short) 0, count);
+    }
+
+    /**
+     * Read several slots. Each entry is handled as in read(), including the failure count and
+     * backoff of its slot.
+     *
+     * The response has an entry for each slot in the order of the request. An entry is the status
+     * byte followed by the value on success or by the backoff time padded to the size of the value
+     * otherwise.
+     *
+     * p1: 0
+     * p2: 0
+     * data: ([slot ID] [key data])+
+     */
+    private void readBatch(APDU apdu) {
+        p1p2Unused(apdu);
+        final short count = receiveBatch(apdu, READ_DATA_BYTES);
+        final short responseLength = (short) (count * READ_BATCH_RESPONSE_BYTES);
+        // As in read(), the response length is checked before any slot is touched.
+        if (apdu.setOutgoing() < responseLength) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        // Each response entry is shorter than a request entry and is written after the key has
+        // been compared so the output never overwrites input that is still to be read.
+        final byte buffer[] = apdu.getBuffer();
+        short offset = apdu.getOffsetCdata();
+        short outOffset = 0;
+        for (short i = 0; i < count; ++i) {
+            final short slotId = getSlotId(buffer, offset);
+            final byte err = mSlots.read(slotId, buffer, (short) (offset + Consts.SLOT_ID_BYTES),
+                    buffer, (short) (outOffset + 1));
+            buffer[outOffset] = err;
+            if (err != Consts.READ_SUCCESS) {
+                Util.arrayFillNonAtomic(buffer, (short) (outOffset + 5),
+                        (short) (Consts.SLOT_VALUE_BYTES - 4), (byte) 0);
+            }
+            offset += READ_DATA_BYTES;
+            outOffset += READ_BATCH_RESPONSE_BYTES;
+        }
+
+        apdu.setOutgoingLength(responseLength);
+        apdu.sendBytesLong(buffer, (short) 0, responseLength);
+    }
+
+    /**
+     * Erase the value of several slots.
+     *
+     * The response has a status byte for each slot as for writeBatch().
+     *
+     * p1: 0
+     * p2: 0
+     * data: ([slot ID])+
+     */
+    private void eraseValueBatch(APDU apdu) {
+        p1p2Unused(apdu);
+        final short count = receiveBatch(apdu, ERASE_VALUE_BYTES);
+        prepareToSendBatch(apdu, count);
+
+        final byte buffer[] = apdu.getBuffer();
+        short offset = apdu.getOffsetCdata();
+        for (short i = 0; i < count; ++i) {
+            byte status = Consts.BATCH_SUCCESS;
+            try {
+                mSlots.eraseValue(getSlotId(buffer, offset));
+            } catch (CardRuntimeException e) {
+                status = batchEntryFailed();
+            }
+            buffer[i] = status;
+            offset += ERASE_VALUE_BYTES;
+        }
+        apdu.setOutgoingLength(count);
+        apdu.sendBytes((short) 0, count);
+    }
+
+    /**
+     * Switches to outgoing and checks there is room for a status byte per batch entry, before
+     * any slot is touched.
+     */
+    private void prepareToSendBatch(APDU apdu, short count) {
+        if (apdu.setOutgoing() < count) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+    }
+
+    /**
+     * Rolls back the slot update that failed so the rest of the batch can go on.
+     */
+    private byte batchEntryFailed() {
+        if (JCSystem.getTransactionDepth() != 0) {
+            JCSystem.abortTransaction();
+        }
+        return Consts.BATCH_FAILED;
+    }
+
+    /**
+     * Receives the whole command data of a batch into the APDU buffer and checks that all of the
+     * slot IDs are valid, so that a batch is rejected before any slot is touched.
+     *
+     * @return The number of entries in the batch.
+     */
+    private short receiveBatch(APDU apdu, short entryBytes) {
+        final byte buffer[] = apdu.getBuffer();
+        short received = apdu.setIncomingAndReceive();
+        final short dataOffset = apdu.getOffsetCdata();
+        final short length = apdu.getIncomingLength();
+        if (length == 0 || (short) (length % entryBytes) != 0
+                || length > (short) (buffer.length - dataOffset)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        while (received < length) {
+            received += apdu.receiveBytes((short) (dataOffset + received));
+        }
+
+        final short count = (short) (length / entryBytes);
+        final short numSlots = mSlots.getNumSlots();
+        short offset = dataOffset;
+        for (short i = 0; i < count; ++i) {
+            final short slotId = getSlotId(buffer, offset);
+            if (slotId < 0 || slotId >= numSlots) {
+                ISOException.throwIt(Consts.SW_INVALID_SLOT_ID);
+            }
+            offset += entryBytes;
+        }
+        return count;
+    }
+
     /**
      * Check that the parameters are 0.
      *
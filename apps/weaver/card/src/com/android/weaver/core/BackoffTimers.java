@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.weaver.core;
+
+/**
+ * Per slot backoff timers used to throttle reads after failed attempts.
+ *
+ * Times are 32-bit big-endian counts of seconds.
+ */
+interface BackoffTimers {
+    /**
+     * Prepare the slot's timer for a newly written slot. The timer is stopped afterwards.
+     *
+     * @param slotId the slot of the timer
+     */
+    void reset(short slotId);
+
+    /**
+     * Start the slot's timer.
+     *
+     * @param slotId the slot of the timer
+     * @param duration the buffer containing the duration
+     * @param durationOffset the offset of the duration in its buffer
+     */
+    void start(short slotId, byte[] duration, short durationOffset);
+
+    /**
+     * Stop the slot's timer.
+     *
+     * @param slotId the slot of the timer
+     */
+    void stop(short slotId);
+
+    /**
+     * Get the time remaining before the slot's timer expires, zero if it is not running.
+     *
+     * @param slotId the slot of the timer
+     * @param outBuffer the buffer to write the remaining time into
+     * @param outOffset the offset into the output buffer
+     */
+    void getRemainingTime(short slotId, byte[] outBuffer, short outOffset);
+}
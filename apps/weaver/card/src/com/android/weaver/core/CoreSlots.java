@@ -16,235 +16,349 @@
 
 package com.android.weaver.core;
 
-import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
+import javacard.security.RandomData;
 
 import com.android.weaver.Consts;
 import com.android.weaver.Slots;
 
-import com.nxp.id.jcopx.util.DSTimer;
-
 class CoreSlots implements Slots {
-    static final byte NUM_SLOTS = 64;
+    static final short DEFAULT_NUM_SLOTS = 64;
+    // Slot offsets into the key and value arrays must fit in a short.
+    static final short MAX_NUM_SLOTS = (short) (0x7fff / Consts.SLOT_VALUE_BYTES);
+
+    // Conservative logging overhead of the transaction for each update it records.
+    private static final short COMMIT_ENTRY_OVERHEAD = 16;
+    // Updates made by stopping a backoff timer, the software timers clear four bytes one by one.
+    private static final short TIMER_STOP_ENTRIES = 4;
+    // Commit buffer needed to erase one slot: a copy each over the key and value, the failure
+    // count, the populated bit and the timer stop, each entry with the logging overhead.
+    private static final short SLOT_ERASE_COMMIT_COST = (short) (Consts.SLOT_KEY_BYTES
+            + Consts.SLOT_VALUE_BYTES + 2 + 1 + TIMER_STOP_ENTRIES
+            + (4 + TIMER_STOP_ENTRIES) * COMMIT_ENTRY_OVERHEAD);
+
+    // Number of entries in the attempt journal, a power of two. The journal spreads the writes
+    // made for each key comparison over several cells.
+    private static final byte JOURNAL_ENTRIES = 8;
+    // Each journal entry is a single short so it is written atomically. It holds the slot ID plus
+    // one, zero when the entry is free, above the low bits of the failure count the slot will
+    // have if the attempt fails. The slot ID plus one is below MAX_NUM_SLOTS so it fits in the
+    // upper bits.
+    private static final byte JOURNAL_SLOT_SHIFT = 4;
+    private static final short JOURNAL_COUNT_MASK = (short) ((1 << JOURNAL_SLOT_SHIFT) - 1);
+    // Transient journal state.
+    private static final byte JOURNAL_NEXT_ENTRY = 0;
+    private static final byte JOURNAL_RECOVERED = 1;
+
+    private static byte[] sRemainingBackoff;
+
+    private final short mNumSlots;
+    // The keys and values of all slots are packed in two arrays indexed by slot.
+    private byte[] mKeys;
+    private byte[] mValues;
+    private short[] mFailureCounts;
+    private BackoffTimers mBackoffTimers;
+    // Bit per slot which is set while the slot holds a key and value.
+    private byte[] mPopulated;
+    private short[] mJournal;
+    private short[] mJournalState;
+    private RandomData mRandom;
+    // Zeros copied over a key or value when a slot is erased.
+    private byte[] mZeros;
 
-    private Slot[] mSlots;
+    /**
+     * @param numSlots the number of slots, at most {@link #MAX_NUM_SLOTS}
+     * @param backoffTimers the timers for numSlots slots
+     */
+    CoreSlots(short numSlots, BackoffTimers backoffTimers) {
+        mNumSlots = numSlots;
+        mBackoffTimers = backoffTimers;
 
-    CoreSlots() {
         // Allocate all memory up front
-        mSlots = new Slot[NUM_SLOTS];
-        for (short i = 0; i < NUM_SLOTS; ++i) {
-            mSlots[i] = new Slot();
-        }
+        mKeys = new byte[(short) (numSlots * Consts.SLOT_KEY_BYTES)];
+        mValues = new byte[(short) (numSlots * Consts.SLOT_VALUE_BYTES)];
+        mFailureCounts = new short[numSlots];
+        mPopulated = new byte[(short) ((short) (numSlots + 7) / 8)];
+        mJournal = new short[JOURNAL_ENTRIES];
+        mJournalState = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
+        mRandom = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+        mZeros = new byte[(Consts.SLOT_KEY_BYTES > Consts.SLOT_VALUE_BYTES)
+                ? Consts.SLOT_KEY_BYTES : Consts.SLOT_VALUE_BYTES];
 
         // Make the same size as the value so the whole buffer can be copied in read() so there is
         // no time difference between success and failure.
-        Slot.sRemainingBackoff = JCSystem.makeTransientByteArray(
+        sRemainingBackoff = JCSystem.makeTransientByteArray(
                 Consts.SLOT_VALUE_BYTES, JCSystem.CLEAR_ON_RESET);
     }
 
     @Override
     public short getNumSlots() {
-        return NUM_SLOTS;
+        return mNumSlots;
     }
 
+    /**
+     * Transactionally reset the slot with a new key and value.
+     */
     @Override
     public void write(short rawSlotId, byte[] key, short keyOffset,
             byte[] value, short valueOffset) {
         final short slotId = validateSlotId(rawSlotId);
-        mSlots[slotId].write(key, keyOffset, value, valueOffset);
+        recoverJournal();
+        JCSystem.beginTransaction();
+        Util.arrayCopy(key, keyOffset, mKeys, keyOffset(slotId), Consts.SLOT_KEY_BYTES);
+        Util.arrayCopy(value, valueOffset, mValues, valueOffset(slotId), Consts.SLOT_VALUE_BYTES);
+        mFailureCounts[slotId] = 0;
+        mBackoffTimers.reset(slotId);
+        setPopulated(slotId, true);
+        JCSystem.commitTransaction();
     }
 
+    /**
+     * Copy the slot's value to the buffer if the provided key matches the slot's key.
+     *
+     * @return status code
+     */
     @Override
     public byte read(short rawSlotId, byte[] key, short keyOffset,
             byte[] outValue, short outOffset) {
         final short slotId = validateSlotId(rawSlotId);
-        return mSlots[slotId].read(key, keyOffset, outValue, outOffset);
+        recoverJournal();
+
+        // Check timeout has expired or hasn't been started
+        mBackoffTimers.getRemainingTime(slotId, sRemainingBackoff, (short) 0);
+        if (hasRemainingBackOff()) {
+            Util.arrayCopyNonAtomic(
+                    sRemainingBackoff, (short) 0, outValue, outOffset, (byte) 4);
+            return Consts.READ_BACK_OFF;
+        }
+
+        // Assume this read will fail and journal the failure before the key is compared
+        short failureCount = mFailureCounts[slotId];
+        if (failureCount != 0x7fff) {
+            failureCount += 1;
+        }
+        final short journalEntry = beginAttempt(slotId, failureCount);
+        byte result = Consts.READ_WRONG_KEY;
+
+        // Start the timer on a failure
+        if (throttle(sRemainingBackoff, (short) 0, failureCount)) {
+            mBackoffTimers.start(slotId, sRemainingBackoff, (short) 0);
+            result = Consts.READ_BACK_OFF;
+        } else {
+            mBackoffTimers.stop(slotId);
+        }
+
+        // Check the key matches in constant time and copy out the value if it does
+        result = (Util.arrayCompare(
+                key, keyOffset, mKeys, keyOffset(slotId), Consts.SLOT_KEY_BYTES) == 0) ?
+                Consts.READ_SUCCESS : result;
+
+        // Keep track of the number of failures
+        if (result == Consts.READ_SUCCESS) {
+            // This read was successful so drop the journaled failure and reset the failures. The
+            // count is only written if there were failures.
+            endAttempt(journalEntry);
+            if (mFailureCounts[slotId] != 0) {
+                mFailureCounts[slotId] = 0;
+            }
+            mBackoffTimers.stop(slotId);
+        } else {
+            // Store the failure before the journal entry is dropped
+            mFailureCounts[slotId] = failureCount;
+            endAttempt(journalEntry);
+        }
+
+        final byte[] data = (result == Consts.READ_SUCCESS) ? mValues : sRemainingBackoff;
+        final short dataOffset = (result == Consts.READ_SUCCESS) ? valueOffset(slotId) : 0;
+        Util.arrayCopyNonAtomic(data, dataOffset, outValue, outOffset, Consts.SLOT_VALUE_BYTES);
+
+        return result;
     }
 
+    /**
+     * Clear the slot's value.
+     */
     @Override
     public void eraseValue(short rawSlotId) {
         final short slotId = validateSlotId(rawSlotId);
-        mSlots[slotId].eraseValue();
+        // This is intended to be destructive so a partial update is not a problem
+        Util.arrayFillNonAtomic(
+                mValues, valueOffset(slotId), Consts.SLOT_VALUE_BYTES, (byte) 0);
     }
 
+    /**
+     * Clear all populated slots.
+     *
+     * Slots that were never written or are already erased are skipped. The slots are cleared in as
+     * few transactions as the commit buffer allows, each slot is always cleared within a single
+     * transaction.
+     */
     @Override
     public void eraseAll() {
-        for (short i = 0; i < NUM_SLOTS; ++i) {
-            mSlots[i].erase();
+        recoverJournal();
+        JCSystem.beginTransaction();
+        for (short i = 0; i < mNumSlots; ++i) {
+            if (!isPopulated(i)) {
+                continue;
+            }
+            if (JCSystem.getUnusedCommitCapacity() < SLOT_ERASE_COMMIT_COST) {
+                JCSystem.commitTransaction();
+                JCSystem.beginTransaction();
+            }
+            erase(i);
         }
+        JCSystem.commitTransaction();
     }
 
     /**
-     * Check the slot ID is within range and convert it to a short.
+     * Clear the slot. Must be called in a transaction. The key and value are each cleared with a
+     * single copy so they are logged as one entry each.
      */
-    private short validateSlotId(short slotId) {
-        // slotId is unsigned so if the signed version is negative then it is far too big
-        if (slotId < 0 || slotId >= NUM_SLOTS) {
-            ISOException.throwIt(Consts.SW_INVALID_SLOT_ID);
-        }
-        return slotId;
+    private void erase(short slotId) {
+        Util.arrayCopy(mZeros, (short) 0, mKeys, keyOffset(slotId), Consts.SLOT_KEY_BYTES);
+        Util.arrayCopy(mZeros, (short) 0, mValues, valueOffset(slotId), Consts.SLOT_VALUE_BYTES);
+        mFailureCounts[slotId] = 0;
+        mBackoffTimers.stop(slotId);
+        setPopulated(slotId, false);
     }
 
-    private static class Slot {
-        private static byte[] sRemainingBackoff;
-
-        private byte[] mKey = new byte[Consts.SLOT_KEY_BYTES];
-        private byte[] mValue = new byte[Consts.SLOT_VALUE_BYTES];
-        private short mFailureCount;
-        private DSTimer mBackoffTimer;
-
-        /**
-         * Transactionally reset the slot with a new key and value.
-         *
-         * @param keyBuffer   the buffer containing the key data
-         * @param keyOffset   the offset of the key in its buffer
-         * @param valueBuffer the buffer containing the value data
-         * @param valueOffset the offset of the value in its buffer
-         */
-        public void write(
-                byte[] keyBuffer, short keyOffset, byte[] valueBuffer, short valueOffset) {
-            JCSystem.beginTransaction();
-            Util.arrayCopy(keyBuffer, keyOffset, mKey, (short) 0, Consts.SLOT_KEY_BYTES);
-            Util.arrayCopy(valueBuffer, valueOffset, mValue, (short) 0, Consts.SLOT_VALUE_BYTES);
-            mFailureCount = 0;
-            mBackoffTimer = DSTimer.getInstance();
-            JCSystem.commitTransaction();
-        }
-
-        /**
-         * Clear the slot's value.
-         */
-        public void eraseValue() {
-            // This is intended to be destructive so a partial update is not a problem
-            Util.arrayFillNonAtomic(mValue, (short) 0, Consts.SLOT_VALUE_BYTES, (byte) 0);
-        }
+    /**
+     * Journal a read attempt of the slot before its key is compared. The entries are used in turn
+     * so that the writes of successful reads are not concentrated on one location.
+     *
+     * @return the index of the journal entry.
+     */
+    private short beginAttempt(short slotId, short failureCount) {
+        final short entry = mJournalState[JOURNAL_NEXT_ENTRY];
+        mJournalState[JOURNAL_NEXT_ENTRY] = (short) ((short) (entry + 1) & (JOURNAL_ENTRIES - 1));
+        mJournal[entry] = (short) ((short) ((short) (slotId + 1) << JOURNAL_SLOT_SHIFT)
+                | (short) (failureCount & JOURNAL_COUNT_MASK));
+        return entry;
+    }
 
-        /**
-         * Transactionally clear the slot.
-         */
-        public void erase() {
-            JCSystem.beginTransaction();
-            arrayFill(mKey, (short) 0, Consts.SLOT_KEY_BYTES, (byte) 0);
-            arrayFill(mValue, (short) 0, Consts.SLOT_VALUE_BYTES, (byte) 0);
-            mFailureCount = 0;
-            mBackoffTimer.stopTimer();
-            JCSystem.commitTransaction();
-        }
+    /**
+     * Drop the journal entry once the outcome of the attempt has been stored.
+     */
+    private void endAttempt(short entry) {
+        mJournal[entry] = 0;
+    }
 
-        private boolean hasRemainingBackOff() {
-            return ((0 != Util.getShort(sRemainingBackoff, (short) 0)) ||
-                (0 != Util.getShort(sRemainingBackoff, (short) 2)));
+    /**
+     * Count the attempts that were interrupted before their outcome was stored, e.g. by a loss of
+     * power after the key was compared. This is done once after each reset, which is also when
+     * the journal cursor is moved to a random entry so that the writes are not concentrated on the
+     * first entries by frequent resets.
+     *
+     * An entry is only left behind by an interrupted read and every call into the slots recovers
+     * first, so the slot's count is either still the one before the attempt or already the
+     * journaled one. The low bits of the journaled count tell the two apart, which makes applying
+     * an entry idempotent and safe if this is interrupted as well.
+     */
+    private void recoverJournal() {
+        if (mJournalState[JOURNAL_RECOVERED] != 0) {
+            return;
         }
-
-        /**
-         * Copy the slot's value to the buffer if the provided key matches the slot's key.
-         *
-         * @param keyBuffer the buffer containing the key
-         * @param keyOffset the offset of the key in its buffer
-         * @param outBuffer the buffer to copy the value or backoff time into
-         * @param outOffset the offset into the output buffer
-         * @return status code
-         */
-        public byte read(byte[] keyBuffer, short keyOffset, byte[] outBuffer, short outOffset) {
-            // Check timeout has expired or hasn't been started
-            mBackoffTimer.getRemainingTime(sRemainingBackoff, (short) 0);
-            if (hasRemainingBackOff()) {
-                Util.arrayCopyNonAtomic(
-                        sRemainingBackoff, (short) 0, outBuffer, outOffset, (byte) 4);
-                return Consts.READ_BACK_OFF;
-            }
-
-            // Assume this read will fail
-            if (mFailureCount != 0x7fff) {
-                mFailureCount += 1;
+        for (short entry = 0; entry < JOURNAL_ENTRIES; ++entry) {
+            final short slotId = (short) ((short) (mJournal[entry] >> JOURNAL_SLOT_SHIFT) - 1);
+            if (slotId < 0) {
+                continue;
             }
-            byte result = Consts.READ_WRONG_KEY;
-
-            // Start the timer on a failure
-            if (throttle(sRemainingBackoff, (short) 0, mFailureCount)) {
-                mBackoffTimer.startTimer(
-                        sRemainingBackoff, (short) 0, DSTimer.DST_POWEROFFMODE_FALLBACK);
-                result = Consts.READ_BACK_OFF;
-            } else {
-                mBackoffTimer.stopTimer();
+            final short countBits = (short) (mJournal[entry] & JOURNAL_COUNT_MASK);
+            if (slotId < mNumSlots
+                    && (short) (mFailureCounts[slotId] & JOURNAL_COUNT_MASK) != countBits) {
+                mFailureCounts[slotId] += 1;
             }
+            endAttempt(entry);
+        }
 
-            // Check the key matches in constant time and copy out the value if it does
-            result = (Util.arrayCompare(
-                    keyBuffer, keyOffset, mKey, (short) 0, Consts.SLOT_KEY_BYTES) == 0) ?
-                    Consts.READ_SUCCESS : result;
+        mRandom.generateData(sRemainingBackoff, (short) 0, (short) 1);
+        mJournalState[JOURNAL_NEXT_ENTRY] = (short) (sRemainingBackoff[0] & (JOURNAL_ENTRIES - 1));
+        mJournalState[JOURNAL_RECOVERED] = 1;
+    }
 
-            // Keep track of the number of failures
-            if (result == Consts.READ_SUCCESS) {
-                // This read was successful so reset the failures
-                mFailureCount = 0;
-                mBackoffTimer.stopTimer();
-            }
+    private boolean isPopulated(short slotId) {
+        return (mPopulated[(short) (slotId >> 3)] & (byte) (1 << (slotId & 7))) != 0;
+    }
 
-            final byte[] data = (result == Consts.READ_SUCCESS) ? mValue : sRemainingBackoff;
-            Util.arrayCopyNonAtomic(data, (short) 0, outBuffer, outOffset, Consts.SLOT_VALUE_BYTES);
+    private void setPopulated(short slotId, boolean populated) {
+        final short index = (short) (slotId >> 3);
+        final byte mask = (byte) (1 << (slotId & 7));
+        mPopulated[index] = (byte) (populated ? (mPopulated[index] | mask)
+                : (mPopulated[index] & ~mask));
+    }
 
-            return result;
+    /**
+     * Check the slot ID is within range and convert it to a short.
+     */
+    private short validateSlotId(short slotId) {
+        // slotId is unsigned so if the signed version is negative then it is far too big
+        if (slotId < 0 || slotId >= mNumSlots) {
+            ISOException.throwIt(Consts.SW_INVALID_SLOT_ID);
         }
+        return slotId;
+    }
 
-        /**
-         * 3.0.3 does not offer Util.arrayFill
-         */
-        private static void arrayFill(byte[] bArray, short bOff, short bLen, byte bValue) {
-            for (short i = 0; i < bLen; ++i) {
-                bArray[(short) (bOff + i)] = bValue;
-            }
-        }
+    private static short keyOffset(short slotId) {
+        return (short) (slotId * Consts.SLOT_KEY_BYTES);
+    }
 
-        /**
-         * Calculates the timeout in seconds as a function of the failure
-         * counter 'x' as follows:
-         *
-         * [0, 5) -> 0
-         * 5 -> 30
-         * [6, 10) -> 0
-         * [11, 30) -> 30
-         * [30, 140) -> 30 * (2^((x - 30)/10))
-         * [140, inf) -> 1 day
-         *
-         * The 32-bit timeout in seconds is written to the array.
-         *
-         * @return Whether there is any throttle time.
-         */
-        private static boolean throttle(byte[] bArray, short bOff, short failureCount) {
-            short highWord = 0;
-            short lowWord = 0;
-
-            final short thirtySeconds = 30;
-            if (failureCount == 0) {
-                // 0s
-            } else if (failureCount > 0 && failureCount <= 10) {
-                if (failureCount % 5 == 0) {
-                    // 30s
-                  lowWord = thirtySeconds;
-                }  else {
-                    // 0s
-                }
-            } else if (failureCount < 30) {
+    private static short valueOffset(short slotId) {
+        return (short) (slotId * Consts.SLOT_VALUE_BYTES);
+    }
+
+    private static boolean hasRemainingBackOff() {
+        return ((0 != Util.getShort(sRemainingBackoff, (short) 0)) ||
+            (0 != Util.getShort(sRemainingBackoff, (short) 2)));
+    }
+
+    /**
+     * Calculates the timeout in seconds as a function of the failure
+     * counter 'x' as follows:
+     *
+     * [0, 5) -> 0
+     * 5 -> 30
+     * [6, 10) -> 0
+     * [11, 30) -> 30
+     * [30, 140) -> 30 * (2^((x - 30)/10))
+     * [140, inf) -> 1 day
+     *
+     * The 32-bit timeout in seconds is written to the array.
+     *
+     * @return Whether there is any throttle time.
+     */
+    private static boolean throttle(byte[] bArray, short bOff, short failureCount) {
+        short highWord = 0;
+        short lowWord = 0;
+
+        final short thirtySeconds = 30;
+        if (failureCount == 0) {
+            // 0s
+        } else if (failureCount > 0 && failureCount <= 10) {
+            if (failureCount % 5 == 0) {
                 // 30s
-                lowWord = thirtySeconds;
-            } else if (failureCount < 140) {
-                // 30 * (2^((x - 30)/10))
-                final short shift = (short) ((short) (failureCount - 30) / 10);
-                lowWord = (short) (thirtySeconds << shift);
-            } else {
-                // 1 day in seconds = 24 * 60 * 60 = 0x1 5180
-                highWord = 0x1;
-                lowWord = 0x5180;
+              lowWord = thirtySeconds;
+            }  else {
+                // 0s
             }
+        } else if (failureCount < 30) {
+            // 30s
+            lowWord = thirtySeconds;
+        } else if (failureCount < 140) {
+            // 30 * (2^((x - 30)/10))
+            final short shift = (short) ((short) (failureCount - 30) / 10);
+            lowWord = (short) (thirtySeconds << shift);
+        } else {
+            // 1 day in seconds = 24 * 60 * 60 = 0x1 5180
+            highWord = 0x1;
+            lowWord = 0x5180;
+        }
 
-            // Write the value to the buffer
-            Util.setShort(bArray, bOff, highWord);
-            Util.setShort(bArray, (short) (bOff + 2), lowWord);
+        // Write the value to the buffer
+        Util.setShort(bArray, bOff, highWord);
+        Util.setShort(bArray, (short) (bOff + 2), lowWord);
 
-            return highWord != 0 || lowWord != 0;
-        }
+        return highWord != 0 || lowWord != 0;
     }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.weaver.core;
+
+import com.nxp.id.jcopx.util.DSTimer;
+
+/**
+ * Backoff timers backed by the JCOP DSTimer, which keeps running while the chip is powered off.
+ */
+class DSTimerBackoffTimers implements BackoffTimers {
+    private DSTimer[] mTimers;
+
+    DSTimerBackoffTimers(short numSlots) {
+        mTimers = new DSTimer[numSlots];
+    }
+
+    @Override
+    public void reset(short slotId) {
+        mTimers[slotId] = DSTimer.getInstance();
+    }
+
+    @Override
+    public void start(short slotId, byte[] duration, short durationOffset) {
+        mTimers[slotId].startTimer(duration, durationOffset, DSTimer.DST_POWEROFFMODE_FALLBACK);
+    }
+
+    @Override
+    public void stop(short slotId) {
+        mTimers[slotId].stopTimer();
+    }
+
+    @Override
+    public void getRemainingTime(short slotId, byte[] outBuffer, short outOffset) {
+        mTimers[slotId].getRemainingTime(outBuffer, outOffset);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.weaver.core;
+
+import javacard.framework.Util;
+
+/**
+ * Backoff timers driven by a software clock for simulators which do not have the JCOP DSTimer.
+ *
+ * Selected with {@link WeaverCore#INSTALL_FLAG_SOFTWARE_TIMERS} at install. The clock only moves
+ * when {@link #advance} is called so the backoff schedule can be stepped through
+ * deterministically. It must not be used on a real device as the clock does not move by itself.
+ * The deadlines of all slots are held in a single table, a deadline is zero while the timer of the
+ * slot is stopped.
+ */
+class SoftwareBackoffTimers implements BackoffTimers {
+    private static final byte TIME_BYTES = 4;
+
+    private byte[] mNow;
+    private byte[] mDeadlines;
+
+    SoftwareBackoffTimers(short numSlots) {
+        mNow = new byte[TIME_BYTES];
+        mDeadlines = new byte[(short) (numSlots * TIME_BYTES)];
+    }
+
+    /**
+     * Move the clock forwards.
+     *
+     * @param seconds the buffer containing the time to advance the clock by
+     * @param secondsOffset the offset of the time in its buffer
+     */
+    void advance(byte[] seconds, short secondsOffset) {
+        add(mNow, (short) 0, seconds, secondsOffset, mNow, (short) 0);
+    }
+
+    @Override
+    public void reset(short slotId) {
+        stop(slotId);
+    }
+
+    @Override
+    public void start(short slotId, byte[] duration, short durationOffset) {
+        add(mNow, (short) 0, duration, durationOffset, mDeadlines, deadlineOffset(slotId));
+    }
+
+    @Override
+    public void stop(short slotId) {
+        // Called within the transactions of CoreSlots so the deadline must be updated atomically,
+        // 3.0.3 does not offer Util.arrayFill.
+        final short deadlineOffset = deadlineOffset(slotId);
+        for (short i = 0; i < TIME_BYTES; ++i) {
+            mDeadlines[(short) (deadlineOffset + i)] = 0;
+        }
+    }
+
+    @Override
+    public void getRemainingTime(short slotId, byte[] outBuffer, short outOffset) {
+        final short deadlineOffset = deadlineOffset(slotId);
+        if (isGreater(mDeadlines, deadlineOffset, mNow, (short) 0)) {
+            subtract(mDeadlines, deadlineOffset, mNow, (short) 0, outBuffer, outOffset);
+        } else {
+            Util.arrayFillNonAtomic(outBuffer, outOffset, TIME_BYTES, (byte) 0);
+        }
+    }
+
+    private static short deadlineOffset(short slotId) {
+        return (short) (slotId * TIME_BYTES);
+    }
+
+    /**
+     * Unsigned comparison of a and b.
+     */
+    private static boolean isGreater(byte[] a, short aOff, byte[] b, short bOff) {
+        for (short i = 0; i < TIME_BYTES; ++i) {
+            final short aByte = (short) (a[(short) (aOff + i)] & 0xff);
+            final short bByte = (short) (b[(short) (bOff + i)] & 0xff);
+            if (aByte != bByte) {
+                return aByte > bByte;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * out = a + b, wrapping around on overflow. out may be the same as a or b.
+     */
+    private static void add(byte[] a, short aOff, byte[] b, short bOff, byte[] out, short outOff) {
+        short carry = 0;
+        for (short i = TIME_BYTES - 1; i >= 0; --i) {
+            final short sum = (short) ((a[(short) (aOff + i)] & 0xff)
+                    + (b[(short) (bOff + i)] & 0xff) + carry);
+            out[(short) (outOff + i)] = (byte) sum;
+            carry = (short) (sum >> 8);
+        }
+    }
+
+    /**
+     * out = a - b where a is not less than b. out may be the same as a or b.
+     */
+    private static void subtract(
+            byte[] a, short aOff, byte[] b, short bOff, byte[] out, short outOff) {
+        short borrow = 0;
+        for (short i = TIME_BYTES - 1; i >= 0; --i) {
+            final short difference = (short) ((a[(short) (aOff + i)] & 0xff)
+                    - (b[(short) (bOff + i)] & 0xff) - borrow);
+            out[(short) (outOff + i)] = (byte) difference;
+            borrow = (short) (difference < 0 ? 1 : 0);
+        }
+    }
+}
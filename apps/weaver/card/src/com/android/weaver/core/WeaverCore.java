@@ -19,30 +19,61 @@ package com.android.weaver.core;
 import javacard.framework.AID;
 import javacard.framework.APDU;
 import javacard.framework.Applet;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
 import javacard.framework.Shareable;
+import javacard.framework.Util;
 
 class WeaverCore extends Applet {
     public static final byte[] COMMAPP_APPLET_AID
             = new byte[] {(byte) 0xA0, 0x00, 0x00, 0x04, 0x76, 0x57, 0x56,
                                  0x52, 0x43, 0x4F, 0x4D, 0x4D, 0x30};
 
+    // Install flag selecting the software clock for the backoff timers. This is only for
+    // simulators without the JCOP DSTimer, see SoftwareBackoffTimers.
+    static final byte INSTALL_FLAG_SOFTWARE_TIMERS = 0x01;
+
     private CoreSlots mSlots;
 
-    protected WeaverCore() {
+    protected WeaverCore(short numSlots, byte flags) {
         // Allocate all memory up front
-        mSlots = new CoreSlots();
+        final BackoffTimers backoffTimers = ((flags & INSTALL_FLAG_SOFTWARE_TIMERS) != 0)
+                ? (BackoffTimers) new SoftwareBackoffTimers(numSlots)
+                : (BackoffTimers) new DSTimerBackoffTimers(numSlots);
+        mSlots = new CoreSlots(numSlots, backoffTimers);
         register();
     }
 
     /**
      * Installs this applet.
      *
+     * The applet specific parameters optionally hold the number of slots as a 16-bit value. The
+     * default of {@link CoreSlots#DEFAULT_NUM_SLOTS} is used without it. An optional flags byte
+     * may follow, where {@link #INSTALL_FLAG_SOFTWARE_TIMERS} selects the software clock instead
+     * of the DSTimer. Devices must leave it clear.
+     *
      * @param params the installation parameters
      * @param offset the starting offset of the parameters
      * @param length the length of the parameters
      */
     public static void install(byte[] params, short offset, byte length) {
-        new WeaverCore();
+        // Skip the instance AID and the control info to get to the applet data
+        short dataOffset = (short) (offset + 1 + params[offset]);
+        dataOffset += (short) (1 + params[dataOffset]);
+        final byte dataLength = params[dataOffset++];
+
+        short numSlots = CoreSlots.DEFAULT_NUM_SLOTS;
+        byte flags = 0;
+        if (dataLength >= 2) {
+            numSlots = Util.getShort(params, dataOffset);
+        }
+        if (dataLength >= 3) {
+            flags = params[(short) (dataOffset + 2)];
+        }
+        if (numSlots <= 0 || numSlots > CoreSlots.MAX_NUM_SLOTS) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        new WeaverCore(numSlots, flags);
     }
 
     /**
@@ -394,6 +394,18 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
   /** Receives data, which can be extended data, as requested by the command instance. */
   public static short receiveIncoming(APDU apdu, short reqExp) {
+    short bufferStartOffset = receiveIncomingData(apdu);
+    short bufferLength = apdu.getIncomingLength();
+    short req = decoder.decode(reqExp, repository.getHeap(), bufferStartOffset, bufferLength);
+    repository.reclaimMemory(bufferLength);
+    return req;
+  }
+
+  /**
+   * Receives the incoming data into the reclaimable memory of the heap without decoding it. The
+   * caller is responsible for reclaiming apdu.getIncomingLength() bytes once done with the data.
+   */
+  public static short receiveIncomingData(APDU apdu) {
     byte[] srcBuffer = apdu.getBuffer();
     short recvLen = apdu.setIncomingAndReceive();
     short srcOffset = apdu.getOffsetCdata();
@@ -409,9 +421,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       index += recvLen;
       recvLen = apdu.receiveBytes(srcOffset);
     }
-    short req = decoder.decode(reqExp, buffer, bufferStartOffset, bufferLength);
-    repository.reclaimMemory(bufferLength);
-    return req;
+    return bufferStartOffset;
   }
 
   private static short createKeyBlobInstance(byte keyType) {
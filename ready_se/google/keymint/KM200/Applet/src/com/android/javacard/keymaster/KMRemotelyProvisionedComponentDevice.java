@@ -185,6 +185,24 @@ public class KMRemotelyProvisionedComponentDevice {
 
   // RKP mac key size
   private static final byte RKP_MAC_KEY_SIZE = 32;
+  // Below are the offsets of the validated EEK chain cache. It holds the SHA-256 digest of the
+  // last validated EEK chain, the mode it was validated in and the leaf EEK id and public key.
+  private static final byte EEK_CACHE_DIGEST_OFFSET = 0;
+  private static final byte EEK_CACHE_MODE_OFFSET = 32;
+  private static final byte EEK_CACHE_KEY_ID_LEN_OFFSET = 33;
+  private static final byte EEK_CACHE_KEY_LEN_OFFSET = 34;
+  private static final byte EEK_CACHE_KEY_ID_OFFSET = 35;
+  private static final byte EEK_CACHE_KEY_ID_MAX_SIZE = 64;
+  private static final byte EEK_CACHE_KEY_OFFSET =
+      EEK_CACHE_KEY_ID_OFFSET + EEK_CACHE_KEY_ID_MAX_SIZE;
+  private static final byte EEK_CACHE_KEY_MAX_SIZE = 65;
+  private static final short EEK_CACHE_SIZE = EEK_CACHE_KEY_OFFSET + EEK_CACHE_KEY_MAX_SIZE;
+  // The cache modes. The chain is validated against the authorized roots only in production mode,
+  // so a chain accepted in test mode must not be reused in production mode.
+  private static final byte EEK_CACHE_EMPTY = 0x00;
+  private static final byte EEK_CACHE_PRODUCTION_MODE = 0x01;
+  private static final byte EEK_CACHE_TEST_MODE = 0x02;
+  private static final byte SHA256_DIGEST_SIZE = 32;
   // This holds the Google ECDSA P256 root key for the Endpoint Encryption Key.
   public static Object[] authorizedEekRoots;
   // Used to hold the temporary results.
@@ -206,6 +224,8 @@ public class KMRemotelyProvisionedComponentDevice {
   private Object[] operation;
   // Holds the current index in the data table.
   private short[] dataIndex;
+  // Holds the last validated EEK chain.
+  private byte[] eekCache;
 
   public KMRemotelyProvisionedComponentDevice(
       KMEncoder encoder,
@@ -222,6 +242,7 @@ public class KMRemotelyProvisionedComponentDevice {
     data = JCSystem.makeTransientByteArray(DATA_SIZE, JCSystem.CLEAR_ON_RESET);
     operation = JCSystem.makeTransientObjectArray((short) 1, JCSystem.CLEAR_ON_RESET);
     dataIndex = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+    eekCache = JCSystem.makeTransientByteArray(EEK_CACHE_SIZE, JCSystem.CLEAR_ON_RESET);
     // Initialize RKP mac key
     if (!seProvider.isUpgrading()) {
       short offset = repository.allocReclaimableMemory((short) RKP_MAC_KEY_SIZE);
@@ -476,34 +497,61 @@ public class KMRemotelyProvisionedComponentDevice {
     try {
       // The prior state can be BEGIN or UPDATE
       validateState((byte) (BEGIN | UPDATE));
-      short headers = KMCoseHeaders.exp();
-      short arrInst = KMArray.instance((short) 4);
-      KMArray.cast(arrInst).add((short) 0, KMByteBlob.exp());
-      KMArray.cast(arrInst).add((short) 1, headers);
-      KMArray.cast(arrInst).add((short) 2, KMByteBlob.exp());
-      KMArray.cast(arrInst).add((short) 3, KMByteBlob.exp());
-      short arrSignPtr = KMArray.exp(arrInst);
-      arrInst = KMKeymasterApplet.receiveIncoming(apdu, arrSignPtr);
-      if (KMArray.cast(arrInst).length() == 0) {
-        KMException.throwIt(KMError.STATUS_INVALID_EEK);
-      }
+      short bufferStart = KMKeymasterApplet.receiveIncomingData(apdu);
+      short bufferLength = apdu.getIncomingLength();
       // Re-purpose the apdu buffer as scratch pad.
       byte[] scratchPad = apdu.getBuffer();
-      // Validate eek chain.
-      short eekKey = validateAndExtractEekPub(arrInst, scratchPad);
-      // Store eek public key and eek id in the data table.
-      short eekKeyId = KMCoseKey.cast(eekKey).getKeyIdentifier();
-      short dataEntryIndex = createEntry(EEK_KEY_ID, KMByteBlob.cast(eekKeyId).length());
-      Util.arrayCopyNonAtomic(
-          KMByteBlob.cast(eekKeyId).getBuffer(),
-          KMByteBlob.cast(eekKeyId).getStartOff(),
-          data,
-          dataEntryIndex,
-          KMByteBlob.cast(eekKeyId).length());
-      // Convert the coseKey to a public key.
-      short len = KMCoseKey.cast(eekKey).getEcdsa256PublicKey(scratchPad, (short) 0);
-      dataEntryIndex = createEntry(EEK_KEY, len);
-      Util.arrayCopyNonAtomic(scratchPad, (short) 0, data, dataEntryIndex, len);
+      // The production EEK chain rarely changes, so a chain identical to the last validated one
+      // is accepted without parsing and verifying it again.
+      seProvider.messageDigest256(
+          repository.getHeap(), bufferStart, bufferLength, scratchPad, (short) 0);
+      if (isEekChainCached(scratchPad, (short) 0)) {
+        repository.reclaimMemory(bufferLength);
+        storeEekKey(
+            eekCache,
+            EEK_CACHE_KEY_ID_OFFSET,
+            (short) eekCache[EEK_CACHE_KEY_ID_LEN_OFFSET],
+            eekCache,
+            EEK_CACHE_KEY_OFFSET,
+            (short) eekCache[EEK_CACHE_KEY_LEN_OFFSET]);
+      } else {
+        // Invalidate the cache as the new chain is not yet validated.
+        eekCache[EEK_CACHE_MODE_OFFSET] = EEK_CACHE_EMPTY;
+        Util.arrayCopyNonAtomic(
+            scratchPad, (short) 0, eekCache, EEK_CACHE_DIGEST_OFFSET, SHA256_DIGEST_SIZE);
+        short headers = KMCoseHeaders.exp();
+        short arrInst = KMArray.instance((short) 4);
+        KMArray.cast(arrInst).add((short) 0, KMByteBlob.exp());
+        KMArray.cast(arrInst).add((short) 1, headers);
+        KMArray.cast(arrInst).add((short) 2, KMByteBlob.exp());
+        KMArray.cast(arrInst).add((short) 3, KMByteBlob.exp());
+        short arrSignPtr = KMArray.exp(arrInst);
+        arrInst = decoder.decode(arrSignPtr, repository.getHeap(), bufferStart, bufferLength);
+        repository.reclaimMemory(bufferLength);
+        if (KMArray.cast(arrInst).length() == 0) {
+          KMException.throwIt(KMError.STATUS_INVALID_EEK);
+        }
+        // Validate eek chain.
+        short eekKey = validateAndExtractEekPub(arrInst, scratchPad);
+        short eekKeyId = KMCoseKey.cast(eekKey).getKeyIdentifier();
+        // Convert the coseKey to a public key.
+        short len = KMCoseKey.cast(eekKey).getEcdsa256PublicKey(scratchPad, (short) 0);
+        // Store eek public key and eek id in the data table.
+        storeEekKey(
+            KMByteBlob.cast(eekKeyId).getBuffer(),
+            KMByteBlob.cast(eekKeyId).getStartOff(),
+            KMByteBlob.cast(eekKeyId).length(),
+            scratchPad,
+            (short) 0,
+            len);
+        cacheEekKey(
+            KMByteBlob.cast(eekKeyId).getBuffer(),
+            KMByteBlob.cast(eekKeyId).getStartOff(),
+            KMByteBlob.cast(eekKeyId).length(),
+            scratchPad,
+            (short) 0,
+            len);
+      }
       // Update the state
       updateState(UPDATE);
       KMKeymasterApplet.sendResponse(apdu, KMError.OK);
@@ -514,6 +562,38 @@ public class KMRemotelyProvisionedComponentDevice {
     }
   }
 
+  private void storeEekKey(
+      byte[] keyIdBuf, short keyIdOff, short keyIdLen, byte[] keyBuf, short keyOff, short keyLen) {
+    short dataEntryIndex = createEntry(EEK_KEY_ID, keyIdLen);
+    Util.arrayCopyNonAtomic(keyIdBuf, keyIdOff, data, dataEntryIndex, keyIdLen);
+    dataEntryIndex = createEntry(EEK_KEY, keyLen);
+    Util.arrayCopyNonAtomic(keyBuf, keyOff, data, dataEntryIndex, keyLen);
+  }
+
+  private byte getEekCacheMode() {
+    return (TRUE == data[getEntry(TEST_MODE)]) ? EEK_CACHE_TEST_MODE : EEK_CACHE_PRODUCTION_MODE;
+  }
+
+  private boolean isEekChainCached(byte[] digest, short digestOff) {
+    return eekCache[EEK_CACHE_MODE_OFFSET] == getEekCacheMode()
+        && 0
+            == Util.arrayCompare(
+                eekCache, EEK_CACHE_DIGEST_OFFSET, digest, digestOff, SHA256_DIGEST_SIZE);
+  }
+
+  // Caches the leaf EEK of the validated chain whose digest is already in the cache.
+  private void cacheEekKey(
+      byte[] keyIdBuf, short keyIdOff, short keyIdLen, byte[] keyBuf, short keyOff, short keyLen) {
+    if (keyIdLen > EEK_CACHE_KEY_ID_MAX_SIZE || keyLen > EEK_CACHE_KEY_MAX_SIZE) {
+      return;
+    }
+    Util.arrayCopyNonAtomic(keyIdBuf, keyIdOff, eekCache, EEK_CACHE_KEY_ID_OFFSET, keyIdLen);
+    Util.arrayCopyNonAtomic(keyBuf, keyOff, eekCache, EEK_CACHE_KEY_OFFSET, keyLen);
+    eekCache[EEK_CACHE_KEY_ID_LEN_OFFSET] = (byte) keyIdLen;
+    eekCache[EEK_CACHE_KEY_LEN_OFFSET] = (byte) keyLen;
+    eekCache[EEK_CACHE_MODE_OFFSET] = getEekCacheMode();
+  }
+
   /**
    * This is the fourth command of generateCSR.
    * Input:
@@ -114,6 +114,9 @@ public class KMAndroidSEApplet extends KMKeymasterApplet implements OnUpgradeLis
   @Override
   public void process(APDU apdu) {
     try {
+      // The commands handled here do not go through super.process, so the outgoing state of the
+      // previous apdu is cleared before anything can send a response.
+      apduStatusFlags[APDU_OUTGOING_STATUS_INDEX] = 0;
       handleDeviceBooted();
       // If this is select applet apdu which is selecting this applet then return
       if (apdu.isISOInterindustryCLA()) {
@@ -282,6 +285,7 @@ public class KMAndroidSEApplet extends KMKeymasterApplet implements OnUpgradeLis
     // Store secure boot mode value.
     JCSystem.beginTransaction();
     kmDataStore.secureBootMode = (byte) val;
+    kmDataStore.invalidateDeviceInfo();
     JCSystem.commitTransaction();
     kmDataStore.setProvisionStatus(PROVISION_STATUS_SECURE_BOOT_MODE);
     sendResponse(apdu, KMError.OK);
@@ -139,6 +139,20 @@ public class KMAttestationCertImpl implements KMAttestationCert {
   private static final short ATTESTATION_VERSION = 300;
   // The X.509 version as per rfc5280#section-4.1.2.1
   private static final byte X509_VERSION = (byte) 0x02;
+  // Pre-encoded explicitly tagged [0] X.509 version - v3.
+  private static final byte[] X509VersionTemplate = {
+    (byte) 0xA0, 0x03, 0x02, 0x01, X509_VERSION
+  };
+  // Pre-encoded leading fields of the KeyDescription sequence i.e. attestationVersion,
+  // attestationSecurityLevel, keymintVersion and keymintSecurityLevel.
+  private static final byte[] keyDescriptionVersionTemplate = {
+    0x02, 0x02, (byte) (ATTESTATION_VERSION >> 8), (byte) ATTESTATION_VERSION,
+    0x0A, 0x01, KMType.STRONGBOX,
+    0x02, 0x02, (byte) (KEYMINT_VERSION >> 8), (byte) KEYMINT_VERSION,
+    0x0A, 0x01, KMType.STRONGBOX
+  };
+  // The maximum size of the cached DER encoded RootOfTrust including its tag header.
+  private static final short ROOT_OF_TRUST_TEMPLATE_MAX_SIZE = 160;
 
   // Buffer indexes in transient array
   private static final byte NUM_INDEX_ENTRIES = 21;
@@ -183,6 +197,10 @@ public class KMAttestationCertImpl implements KMAttestationCert {
   private static byte[] stack;
   private static short[] swParams;
   private static short[] hwParams;
+  // The RootOfTrust only changes at boot so its encoding is cached after the first certificate
+  // and copied into the subsequent certificates. The length is zero if the cache is invalid.
+  private static byte[] rootOfTrustTemplate;
+  private static short[] rootOfTrustTemplateLen;
   // The maximum size of the serial number.
   private static final byte SERIAL_NUM_MAX_LEN = 20;
 
@@ -198,6 +216,10 @@ public class KMAttestationCertImpl implements KMAttestationCert {
       states = JCSystem.makeTransientByteArray(NUM_STATE_ENTRIES, JCSystem.CLEAR_ON_RESET);
       swParams = JCSystem.makeTransientShortArray(MAX_PARAMS, JCSystem.CLEAR_ON_RESET);
       hwParams = JCSystem.makeTransientShortArray(MAX_PARAMS, JCSystem.CLEAR_ON_RESET);
+      rootOfTrustTemplate =
+          JCSystem.makeTransientByteArray(
+              ROOT_OF_TRUST_TEMPLATE_MAX_SIZE, JCSystem.CLEAR_ON_RESET);
+      rootOfTrustTemplateLen = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
     }
     init(rsaCert);
     return inst;
@@ -220,6 +242,16 @@ public class KMAttestationCertImpl implements KMAttestationCert {
     indexes[SERIAL_NUMBER] = KMType.INVALID_VALUE;
   }
 
+  /**
+   * Invalidates the cached RootOfTrust encoding. This must be called whenever the boot parameters
+   * change so that the next certificate encodes the new values.
+   */
+  public static void invalidateRootOfTrustTemplate() {
+    if (rootOfTrustTemplateLen != null) {
+      rootOfTrustTemplateLen[0] = 0;
+    }
+  }
+
   @Override
   public KMAttestationCert verifiedBootHash(short obj) {
     indexes[VERIFIED_HASH] = obj;
@@ -375,10 +407,7 @@ public class KMAttestationCertImpl implements KMAttestationCert {
         KMByteBlob.cast(indexes[SERIAL_NUMBER]).length());
     pushIntegerHeader(KMByteBlob.cast(indexes[SERIAL_NUMBER]).length());
     // Version
-    pushByte(X509_VERSION);
-    pushIntegerHeader((short) 1);
-    pushByte((byte) 0x03);
-    pushByte((byte) 0xA0);
+    pushBytes(X509VersionTemplate, (short) 0, (short) X509VersionTemplate.length);
     // Finally sequence header.
     pushSequenceHeader((short) (last - indexes[STACK_PTR]));
   }
@@ -507,12 +536,8 @@ public class KMAttestationCertImpl implements KMAttestationCert {
         KMByteBlob.cast(indexes[ATT_CHALLENGE]).getBuffer(),
         KMByteBlob.cast(indexes[ATT_CHALLENGE]).getStartOff(),
         KMByteBlob.cast(indexes[ATT_CHALLENGE]).length());
-    pushEnumerated(KMType.STRONGBOX);
-    pushShort(KEYMINT_VERSION);
-    pushIntegerHeader((short) 2);
-    pushEnumerated(KMType.STRONGBOX);
-    pushShort(ATTESTATION_VERSION);
-    pushIntegerHeader((short) 2);
+    pushBytes(
+        keyDescriptionVersionTemplate, (short) 0, (short) keyDescriptionVersionTemplate.length);
     pushSequenceHeader((short) (last - indexes[STACK_PTR]));
     pushOctetStringHeader((short) (last - indexes[STACK_PTR]));
     pushBytes(androidExtn, (short) 0, (short) androidExtn.length);
@@ -622,6 +647,10 @@ public class KMAttestationCertImpl implements KMAttestationCert {
   //          Failed                     (3),
   //      }
   private static void pushRoT() {
+    if (rootOfTrustTemplateLen[0] != 0) {
+      pushBytes(rootOfTrustTemplate, (short) 0, rootOfTrustTemplateLen[0]);
+      return;
+    }
     short last = indexes[STACK_PTR];
     // verified boot hash
     pushOctetString(
@@ -642,6 +671,12 @@ public class KMAttestationCertImpl implements KMAttestationCert {
     pushSequenceHeader((short) (last - indexes[STACK_PTR]));
     // ... and tag Id
     pushTagIdHeader(KMType.ROOT_OF_TRUST, (short) (last - indexes[STACK_PTR]));
+    // Cache the encoding for the subsequent certificates.
+    short len = (short) (last - indexes[STACK_PTR]);
+    if (len <= ROOT_OF_TRUST_TEMPLATE_MAX_SIZE) {
+      Util.arrayCopyNonAtomic(stack, indexes[STACK_PTR], rootOfTrustTemplate, (short) 0, len);
+      rootOfTrustTemplateLen[0] = len;
+    }
   }
 
   private static void pushOctetString(byte[] buf, short start, short len) {
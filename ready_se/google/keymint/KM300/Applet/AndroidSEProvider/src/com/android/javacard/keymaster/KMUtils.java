@@ -16,6 +16,7 @@
 package com.android.javacard.keymaster;
 
 import com.android.javacard.seprovider.KMException;
+import javacard.framework.JCSystem;
 import javacard.framework.Util;
 
 /**
@@ -31,9 +32,6 @@ public class KMUtils {
     0, 0, 0, 0, 0, 0x36, (byte) 0xEE, (byte) 0x80
   }; // 3600000 msec
   public static final byte[] oneDayMsec = {0, 0, 0, 0, 0x05, 0x26, 0x5C, 0x00}; // 86400000 msec
-  public static final byte[] leapYearMsec = {
-    0, 0, 0, 0x07, (byte) 0x5C, (byte) 0xD7, (byte) 0x88, 0x00
-  }; // 31622400000;
   public static final byte[] yearMsec = {
     0, 0, 0, 0x07, 0x57, (byte) 0xB1, 0x2C, 0x00
   }; // 31536000000
@@ -41,16 +39,6 @@ public class KMUtils {
   public static final byte[] fourYrsMsec = {
     0, 0, 0, 0x1D, 0x63, (byte) 0xEB, 0x0C, 0x00
   }; // 126230400000
-  // msec
-  public static final byte[] febMonthLeapMSec = {
-    0, 0, 0, 0, (byte) 0x95, 0x58, 0x6C, 0x00
-  }; // 2505600000
-  public static final byte[] febMonthMsec = {
-    0, 0, 0, 0, (byte) 0x90, 0x32, 0x10, 0x00
-  }; // 2419200000
-  public static final byte[] ThirtyOneDaysMonthMsec = {
-    0, 0, 0, 0, (byte) 0x9F, (byte) 0xA5, 0x24, 0x00
-  }; // 2678400000
   public static final byte[] ThirtDaysMonthMsec = {
     0, 0, 0, 0, (byte) 0x9A, 0x7E, (byte) 0xC8, 0x00
   }; // 2592000000
@@ -76,6 +64,19 @@ public class KMUtils {
   public static final byte[] SEC_TO_MILLIS_SHIFT_POS = {9, 8, 7, 6, 5, 3};
   // Represents long integer size
   public static final byte UINT8 = 8;
+  // Number of days before the first day of each month in a non-leap year.
+  private static final short[] DAYS_BEFORE_MONTH = {
+    0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334
+  };
+  // Cache of the recently converted dates. Each entry holds the 8 byte time in milliseconds, the
+  // length of the encoded date and the encoded date in YYMMDDhhmmssZ or YYYYMMDDhhmmssZ format.
+  // The last byte of the cache holds the index of the entry to be replaced next.
+  private static final byte DATE_CACHE_ENTRIES = 2;
+  private static final byte DATE_CACHE_DATE_LEN_OFFSET = 8;
+  private static final byte DATE_CACHE_DATE_OFFSET = 9;
+  private static final byte DATE_CACHE_ENTRY_SIZE = 24;
+  private static final short DATE_CACHE_SIZE = DATE_CACHE_ENTRIES * DATE_CACHE_ENTRY_SIZE + 1;
+  private static byte[] dateCache;
 
   // --------------------------------------
   public static short convertToDate(short time, byte[] scratchPad) {
@@ -99,6 +100,13 @@ public class KMUtils {
         > 0) {
       KMException.throwIt(KMError.INVALID_ARGUMENT);
     }
+    short cacheEntry = findCachedDate(scratchPad, inputOffset);
+    if (dateCache[(short) (cacheEntry + DATE_CACHE_DATE_LEN_OFFSET)] != 0) {
+      return KMByteBlob.instance(
+          dateCache,
+          (short) (cacheEntry + DATE_CACHE_DATE_OFFSET),
+          dateCache[(short) (cacheEntry + DATE_CACHE_DATE_LEN_OFFSET)]);
+    }
     short quotient = 0;
     short endYear = 0;
     short baseYear = year1970;
@@ -127,31 +135,19 @@ public class KMUtils {
     // divide the given time with four years msec count
     quotient = divideAndCopy(scratchPad, inputOffset, fourYrsMsec, (short) 0);
     yrsCount += (short) (quotient * 4); // number of yrs.
-    // divide the given time with one year msec
-    endYear = (short) (yrsCount + 4);
-    for (; yrsCount <= endYear; yrsCount++) {
-      byte[] yearMillis = yearToMillis(yrsCount);
-      if ((KMInteger.unsignedByteArrayCompare(scratchPad, inputOffset, yearMillis, (short) 0, UINT8)
-          < 0)) {
-        break;
-      }
-      subtractAndCopy(scratchPad, inputOffset, yearMillis, (short) 0);
+    // divide the given time with one day msec count. The remaining time is less than four years
+    // so the year, month and day are resolved from the day count using short arithmetic.
+    dayCount = divideAndCopy(scratchPad, inputOffset, oneDayMsec, (short) 0);
+    short daysInYear = isLeapYear(yrsCount) ? (short) 366 : (short) 365;
+    while (dayCount >= daysInYear) {
+      dayCount -= daysInYear;
+      yrsCount++;
+      daysInYear = isLeapYear(yrsCount) ? (short) 366 : (short) 365;
     }
-
-    // divide the given time with one month msec count
-    for (; monthCount <= 12; monthCount++) {
-      byte[] monthMillis = monthToMillis(yrsCount, monthCount);
-      if ((KMInteger.unsignedByteArrayCompare(
-              scratchPad, inputOffset, monthMillis, (short) 0, UINT8)
-          < 0)) {
-        break;
-      }
-      subtractAndCopy(scratchPad, inputOffset, monthMillis, (short) 0);
+    while (monthCount < 12 && dayCount >= daysBeforeMonth(yrsCount, (short) (monthCount + 1))) {
+      monthCount++;
     }
-
-    // divide the given time with one day msec count
-    dayCount = divideAndCopy(scratchPad, inputOffset, oneDayMsec, (short) 0);
-    dayCount++;
+    dayCount = (short) (dayCount - daysBeforeMonth(yrsCount, monthCount) + 1);
 
     // divide the given time with one hour msec count
     hhCount = divideAndCopy(scratchPad, inputOffset, oneHourMsec, (short) 0);
@@ -173,10 +169,40 @@ public class KMUtils {
     scratchPad[len] = Z;
     len++;
     if (yrsCount < year2050) {
-      return KMByteBlob.instance(scratchPad, (short) (inputOffset + 2), (short) (len - 2)); // YY
-    } else {
-      return KMByteBlob.instance(scratchPad, inputOffset, len); // YYYY
+      inputOffset += 2; // YY
+      len -= 2;
     }
+    // YYYY otherwise
+    Util.arrayCopyNonAtomic(
+        scratchPad,
+        inputOffset,
+        dateCache,
+        (short) (cacheEntry + DATE_CACHE_DATE_OFFSET),
+        len);
+    dateCache[(short) (cacheEntry + DATE_CACHE_DATE_LEN_OFFSET)] = (byte) len;
+    return KMByteBlob.instance(scratchPad, inputOffset, len);
+  }
+
+  // Returns the offset of the cache entry holding the given time. If the time is not cached then
+  // the next entry to be replaced is reset to hold the given time with an empty date.
+  private static short findCachedDate(byte[] time, short timeOff) {
+    if (dateCache == null) {
+      dateCache = JCSystem.makeTransientByteArray(DATE_CACHE_SIZE, JCSystem.CLEAR_ON_RESET);
+    }
+    short entry = 0;
+    while (entry < (short) (DATE_CACHE_SIZE - 1)) {
+      if (dateCache[(short) (entry + DATE_CACHE_DATE_LEN_OFFSET)] != 0
+          && Util.arrayCompare(dateCache, entry, time, timeOff, UINT8) == 0) {
+        return entry;
+      }
+      entry += DATE_CACHE_ENTRY_SIZE;
+    }
+    entry = (short) (dateCache[(short) (DATE_CACHE_SIZE - 1)] * DATE_CACHE_ENTRY_SIZE);
+    dateCache[(short) (DATE_CACHE_SIZE - 1)] =
+        (byte) ((dateCache[(short) (DATE_CACHE_SIZE - 1)] + 1) % DATE_CACHE_ENTRIES);
+    Util.arrayCopyNonAtomic(time, timeOff, dateCache, entry, UINT8);
+    dateCache[(short) (entry + DATE_CACHE_DATE_LEN_OFFSET)] = 0;
+    return entry;
   }
 
   public static short numberToString(short number, byte[] scratchPad, short offset) {
@@ -352,14 +378,6 @@ public class KMUtils {
     return false;
   }
 
-  private static byte[] yearToMillis(short year) {
-    if (isLeapYear(year)) {
-      return leapYearMsec;
-    } else {
-      return yearMsec;
-    }
-  }
-
   private static byte[] centuryToMillis(short year) {
     if (isLeapYear(year)) {
       return centuryWithLeapMSec;
@@ -368,18 +386,12 @@ public class KMUtils {
     }
   }
 
-  private static byte[] monthToMillis(short year, short month) {
-    if (month == 2) {
-      if (isLeapYear(year)) {
-        return febMonthLeapMSec;
-      } else {
-        return febMonthMsec;
-      }
-    } else if (((month <= 7) && ((month % 2 == 1))) || ((month > 7) && ((month % 2 == 0)))) {
-      return ThirtyOneDaysMonthMsec;
-    } else {
-      return ThirtDaysMonthMsec;
+  private static short daysBeforeMonth(short year, short month) {
+    short days = DAYS_BEFORE_MONTH[(short) (month - 1)];
+    if (month > 2 && isLeapYear(year)) {
+      days++;
     }
+    return days;
   }
 
   private static short adjustBaseYearToLeapYearsRange(
@@ -58,6 +58,20 @@ public class KMAndroidSEProvider implements KMSEProvider {
   public static final short TMP_ARRAY_SIZE = 300;
   // The length of the rsa key in bytes.
   private static final short RSA_KEY_SIZE = 256;
+  // The maximum number of pre-generated RSA key pairs held in the RSA key pair reserve. The
+  // reserve uses its own persistent key objects and is not shared with any other key type.
+  // Setting this value to 0 disables the reserve.
+  public static final byte RSA_KEY_PAIR_RESERVE_SIZE = 2;
+  // Offsets of the hit and miss counters in rsaKeyPairReserveStats[].
+  private static final byte RSA_RESERVE_HITS_OFFSET = 0;
+  private static final byte RSA_RESERVE_MISSES_OFFSET = 1;
+  // The size of the random number prefetch pool. Requests larger than the pool are served
+  // directly from the random number generator.
+  public static final short RNG_POOL_SIZE = 128;
+  // Offsets in rngPoolState[].
+  private static final byte RNG_POOL_AVAILABLE_OFFSET = 0;
+  private static final byte RNG_POOL_REFILLS_OFFSET = 1;
+  private static final byte RNG_POOL_RESEEDS_OFFSET = 2;
   // Below are the flag to denote device reset events
   public static final byte POWER_RESET_FALSE = (byte) 0xAA;
   public static final byte POWER_RESET_TRUE = (byte) 0x00;
@@ -81,6 +95,16 @@ public class KMAndroidSEProvider implements KMSEProvider {
   private KeyPair rsaKeyPair;
   // EC Key Pair.
   private KeyPair ecKeyPair;
+  // Pre-generated RSA key pairs. The key pairs are created lazily on the first refill.
+  private KeyPair[] rsaKeyPairReserve;
+  // Non-zero value at an index denotes that the RSA key pair at the same index is available.
+  private byte[] rsaKeyPairReserveFlags;
+  // Hit and miss counters of the RSA key pair reserve.
+  private short[] rsaKeyPairReserveStats;
+  // Random bytes prefetched from the random number generator.
+  private byte[] rngPool;
+  // Number of unconsumed bytes in rngPool and the refill and reseed counters.
+  private short[] rngPoolState;
   // Temporary array.
   public byte[] tmpArray;
   // This is used for internal encryption/decryption operations.
@@ -126,6 +150,9 @@ public class KMAndroidSEProvider implements KMSEProvider {
         (HMACKey) KeyBuilder.buildKey(KeyBuilder.TYPE_HMAC_TRANSIENT_RESET, (short) 512, false);
     rsaKeyPair = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
     ecKeyPair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
+    rsaKeyPairReserve = new KeyPair[RSA_KEY_PAIR_RESERVE_SIZE];
+    rsaKeyPairReserveFlags = new byte[RSA_KEY_PAIR_RESERVE_SIZE];
+    rsaKeyPairReserveStats = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
     keyAgreement = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH_PLAIN, false);
     poolMgr = KMPoolManager.getInstance();
     poolMgr.initECKey(ecKeyPair);
@@ -142,6 +169,8 @@ public class KMAndroidSEProvider implements KMSEProvider {
     Util.arrayFillNonAtomic(tmpArray, (short) 0, TMP_ARRAY_SIZE, (byte) 0);
     // Random number generator initialisation.
     rng = RandomData.getInstance(RandomData.ALG_KEYGENERATION);
+    rngPool = JCSystem.makeTransientByteArray(RNG_POOL_SIZE, JCSystem.CLEAR_ON_RESET);
+    rngPoolState = JCSystem.makeTransientShortArray((short) 3, JCSystem.CLEAR_ON_RESET);
     androidSEProvider = this;
     resetFlag = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_RESET);
     resetFlag[0] = (byte) POWER_RESET_FALSE;
@@ -281,34 +310,15 @@ public class KMAndroidSEProvider implements KMSEProvider {
         if (RSA_KEY_SIZE != privKeyLength || RSA_KEY_SIZE != pubModLength) {
           CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
-        KeyPair rsaKey = createRsaKeyPair();
-        RSAPrivateKey privKey = (RSAPrivateKey) rsaKey.getPrivate();
-        // Copy exponent.
-        Util.arrayFillNonAtomic(tmpArray, (short) 0, RSA_KEY_SIZE, (byte) 0);
-        lengths[0] = privKey.getExponent(tmpArray, (short) 0);
-        if (lengths[0] > privKeyLength) {
-          CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-        }
-        Util.arrayFillNonAtomic(privKeyBuf, privKeyStart, privKeyLength, (byte) 0);
-        Util.arrayCopyNonAtomic(
-            tmpArray,
-            (short) 0,
+        copyRsaKeyPair(
+            createRsaKeyPair(),
             privKeyBuf,
-            (short) (privKeyStart + privKeyLength - lengths[0]),
-            lengths[0]);
-        // Copy modulus
-        Util.arrayFillNonAtomic(tmpArray, (short) 0, RSA_KEY_SIZE, (byte) 0);
-        lengths[1] = privKey.getModulus(tmpArray, (short) 0);
-        if (lengths[1] > pubModLength) {
-          CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-        }
-        Util.arrayFillNonAtomic(pubModBuf, pubModStart, pubModLength, (byte) 0);
-        Util.arrayCopyNonAtomic(
-            tmpArray,
-            (short) 0,
+            privKeyStart,
+            privKeyLength,
             pubModBuf,
-            (short) (pubModStart + pubModLength - lengths[1]),
-            lengths[1]);
+            pubModStart,
+            pubModLength,
+            lengths);
         break;
       case KMType.EC:
         KeyPair ecKey = createECKeyPair();
@@ -326,6 +336,125 @@ public class KMAndroidSEProvider implements KMSEProvider {
     }
   }
 
+  private void copyRsaKeyPair(
+      KeyPair rsaKey,
+      byte[] privKeyBuf,
+      short privKeyStart,
+      short privKeyLength,
+      byte[] pubModBuf,
+      short pubModStart,
+      short pubModLength,
+      short[] lengths) {
+    try {
+      RSAPrivateKey privKey = (RSAPrivateKey) rsaKey.getPrivate();
+      // Copy exponent.
+      Util.arrayFillNonAtomic(tmpArray, (short) 0, RSA_KEY_SIZE, (byte) 0);
+      lengths[0] = privKey.getExponent(tmpArray, (short) 0);
+      if (lengths[0] > privKeyLength) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+      }
+      Util.arrayFillNonAtomic(privKeyBuf, privKeyStart, privKeyLength, (byte) 0);
+      Util.arrayCopyNonAtomic(
+          tmpArray,
+          (short) 0,
+          privKeyBuf,
+          (short) (privKeyStart + privKeyLength - lengths[0]),
+          lengths[0]);
+      // Copy modulus
+      Util.arrayFillNonAtomic(tmpArray, (short) 0, RSA_KEY_SIZE, (byte) 0);
+      lengths[1] = privKey.getModulus(tmpArray, (short) 0);
+      if (lengths[1] > pubModLength) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+      }
+      Util.arrayFillNonAtomic(pubModBuf, pubModStart, pubModLength, (byte) 0);
+      Util.arrayCopyNonAtomic(
+          tmpArray,
+          (short) 0,
+          pubModBuf,
+          (short) (pubModStart + pubModLength - lengths[1]),
+          lengths[1]);
+    } finally {
+      clean();
+    }
+  }
+
+  private short getRsaKeyPairReserveDepth() {
+    short depth = 0;
+    short index = 0;
+    while (index < RSA_KEY_PAIR_RESERVE_SIZE) {
+      if (rsaKeyPairReserveFlags[index] != 0) {
+        depth++;
+      }
+      index++;
+    }
+    return depth;
+  }
+
+  @Override
+  public short refillRsaKeyPairReserve() {
+    short index = 0;
+    while (index < RSA_KEY_PAIR_RESERVE_SIZE) {
+      if (rsaKeyPairReserveFlags[index] == 0) {
+        if (rsaKeyPairReserve[index] == null) {
+          rsaKeyPairReserve[index] = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
+        }
+        // The public exponent is not set, so the default value 0x010001 is used.
+        rsaKeyPairReserve[index].genKeyPair();
+        // Mark the entry as populated only after the key pair is completely generated.
+        rsaKeyPairReserveFlags[index] = 1;
+        break;
+      }
+      index++;
+    }
+    return getRsaKeyPairReserveDepth();
+  }
+
+  @Override
+  public boolean takeReservedRsaKeyPair(
+      byte[] privKeyBuf,
+      short privKeyStart,
+      short privKeyLength,
+      byte[] pubModBuf,
+      short pubModStart,
+      short pubModLength,
+      short[] lengths) {
+    if (RSA_KEY_SIZE != privKeyLength || RSA_KEY_SIZE != pubModLength) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    short index = 0;
+    while (index < RSA_KEY_PAIR_RESERVE_SIZE) {
+      if (rsaKeyPairReserveFlags[index] != 0) {
+        // Remove the entry from the reserve before the key material is copied out, so that
+        // a tear during the copy never results in the same key pair being used twice.
+        rsaKeyPairReserveFlags[index] = 0;
+        copyRsaKeyPair(
+            rsaKeyPairReserve[index],
+            privKeyBuf,
+            privKeyStart,
+            privKeyLength,
+            pubModBuf,
+            pubModStart,
+            pubModLength,
+            lengths);
+        rsaKeyPairReserve[index].getPrivate().clearKey();
+        rsaKeyPairReserveStats[RSA_RESERVE_HITS_OFFSET]++;
+        return true;
+      }
+      index++;
+    }
+    rsaKeyPairReserveStats[RSA_RESERVE_MISSES_OFFSET]++;
+    return false;
+  }
+
+  @Override
+  public short getRsaKeyPairReserveStatus(byte[] buf, short offset) {
+    short index = Util.setShort(buf, offset, getRsaKeyPairReserveDepth());
+    index = Util.setShort(buf, index, RSA_KEY_PAIR_RESERVE_SIZE);
+    index = Util.setShort(buf, index, rsaKeyPairReserveStats[RSA_RESERVE_HITS_OFFSET]);
+    index = Util.setShort(buf, index, rsaKeyPairReserveStats[RSA_RESERVE_MISSES_OFFSET]);
+    return (short) (index - offset);
+  }
+
   @Override
   public boolean importSymmetricKey(
       byte alg, short keysize, byte[] buf, short startOff, short length) {
@@ -376,12 +505,51 @@ public class KMAndroidSEProvider implements KMSEProvider {
 
   @Override
   public void newRandomNumber(byte[] num, short startOff, short length) {
-    rng.nextBytes(num, startOff, length);
+    if (length > RNG_POOL_SIZE) {
+      rng.nextBytes(num, startOff, length);
+      return;
+    }
+    short available;
+    short len;
+    while (length > 0) {
+      available = rngPoolState[RNG_POOL_AVAILABLE_OFFSET];
+      if (available == 0) {
+        refillRngPool();
+        available = RNG_POOL_SIZE;
+      }
+      len = (length < available) ? length : available;
+      // Bytes are consumed from the end of the pool and zeroized once handed out.
+      available -= len;
+      Util.arrayCopyNonAtomic(rngPool, available, num, startOff, len);
+      Util.arrayFillNonAtomic(rngPool, available, len, (byte) 0);
+      rngPoolState[RNG_POOL_AVAILABLE_OFFSET] = available;
+      startOff += len;
+      length -= len;
+    }
+  }
+
+  private void refillRngPool() {
+    rng.nextBytes(rngPool, (short) 0, RNG_POOL_SIZE);
+    rngPoolState[RNG_POOL_AVAILABLE_OFFSET] = RNG_POOL_SIZE;
+    rngPoolState[RNG_POOL_REFILLS_OFFSET]++;
   }
 
   @Override
   public void addRngEntropy(byte[] num, short offset, short length) {
     rng.setSeed(num, offset, length);
+    // Discard the prefetched bytes so that subsequent requests are drawn after the reseed.
+    Util.arrayFillNonAtomic(rngPool, (short) 0, RNG_POOL_SIZE, (byte) 0);
+    rngPoolState[RNG_POOL_AVAILABLE_OFFSET] = 0;
+    rngPoolState[RNG_POOL_RESEEDS_OFFSET]++;
+  }
+
+  @Override
+  public short getRngPoolStatus(byte[] buf, short offset) {
+    short index = Util.setShort(buf, offset, rngPoolState[RNG_POOL_AVAILABLE_OFFSET]);
+    index = Util.setShort(buf, index, RNG_POOL_SIZE);
+    index = Util.setShort(buf, index, rngPoolState[RNG_POOL_REFILLS_OFFSET]);
+    index = Util.setShort(buf, index, rngPoolState[RNG_POOL_RESEEDS_OFFSET]);
+    return (short) (index - offset);
   }
 
   public short aesGCMEncrypt(
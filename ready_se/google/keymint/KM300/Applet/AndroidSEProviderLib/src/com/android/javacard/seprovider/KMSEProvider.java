@@ -86,6 +86,51 @@ public interface KMSEProvider {
       short pubModMaxLength,
       short[] lengths);
 
+  /**
+   * Generates one RSA 2048 key pair with public exponent 0x010001 and adds it to the RSA key pair
+   * reserve, if the reserve is not full. Only one key pair is generated per call so that a single
+   * call never takes longer than one RSA key generation.
+   *
+   * @return the number of key pairs available in the reserve after the refill.
+   */
+  short refillRsaKeyPairReserve();
+
+  /**
+   * Takes one pre-generated RSA 2048 key pair with public exponent 0x010001 out of the RSA key pair
+   * reserve. The key pair is removed from the reserve before it is returned, so it is never handed
+   * out twice. The output format is the same as createAsymmetricKey for KMType.RSA.
+   *
+   * @param privKeyBuf is the buffer to return the private key exponent.
+   * @param privKeyStart is the start offset.
+   * @param privKeyMaxLength is the maximum length of this private key buffer.
+   * @param pubModBuf is the buffer to return the modulus.
+   * @param pubModStart is the start of offset.
+   * @param pubModMaxLength is the maximum length of this public key buffer.
+   * @param lengths is the actual length of the key pair - lengths[0] should be private key and
+   *     lengths[1] should be public key.
+   * @return true if a key pair was taken from the reserve, false if the reserve is empty.
+   */
+  boolean takeReservedRsaKeyPair(
+      byte[] privKeyBuf,
+      short privKeyStart,
+      short privKeyMaxLength,
+      byte[] pubModBuf,
+      short pubModStart,
+      short pubModMaxLength,
+      short[] lengths);
+
+  /**
+   * Returns the state of the RSA key pair reserve as four consecutive shorts: the number of
+   * available key pairs, the capacity of the reserve, the number of key pairs taken from the
+   * reserve (hits) and the number of requests made while the reserve was empty (misses). The hit
+   * and miss counters are reset on card reset.
+   *
+   * @param buf is the buffer in which the status is returned.
+   * @param offset is the start of the buffer.
+   * @return length of the status data in bytes.
+   */
+  short getRsaKeyPairReserveStatus(byte[] buf, short offset);
+
   /**
    * Initializes the trusted confirmation operation.
    *
@@ -153,6 +198,18 @@ public interface KMSEProvider {
    */
   void addRngEntropy(byte[] num, short offset, short length);
 
+  /**
+   * Returns the state of the random number prefetch pool as four consecutive shorts: the number of
+   * prefetched bytes not yet consumed, the size of the pool, the number of times the pool was
+   * refilled from the random number generator and the number of times it was discarded because
+   * of addRngEntropy. The counters are reset on card reset.
+   *
+   * @param buf is the buffer in which the status is returned.
+   * @param offset is the start of the buffer.
+   * @return length of the status data in bytes.
+   */
+  short getRngPoolStatus(byte[] buf, short offset);
+
   /**
    * This is a oneshot operation that generates and returns back a true random number.
    *
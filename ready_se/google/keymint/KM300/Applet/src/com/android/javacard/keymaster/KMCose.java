@@ -172,6 +172,80 @@ public class KMCose {
     return arrPtr;
   }
 
+  /**
+   * Encodes the MAC_structure or Sig_structure straight into the buffer instead of building a
+   * KMArray and encoding it. The output is identical to encoding the array returned by
+   * constructCoseMacStructure or constructCoseSignStructure. If the payload is INVALID_VALUE then
+   * only the partial structure up to the payload is written, so that the caller can stream the
+   * payload into the signing operation.
+   *
+   * @param encoder instance of the cbor encoder.
+   * @param context either MAC_CONTEXT or SIGNATURE1_CONTEXT.
+   * @param protectedHeader Bstr pointer which holds the protected header.
+   * @param extAad Bstr pointer which holds the external Aad.
+   * @param payload Bstr pointer which holds the payload or INVALID_VALUE.
+   * @param buf output buffer.
+   * @param startOff start offset in the output buffer.
+   * @param bufLen end of the usable region of the output buffer.
+   * @return length of the encoded data.
+   */
+  public static short encodeCoseStructure(
+      KMEncoder encoder,
+      byte[] context,
+      short protectedHeader,
+      short extAad,
+      short payload,
+      byte[] buf,
+      short startOff,
+      short bufLen) {
+    encoder.beginStream(buf, startOff, bufLen);
+    encoder.streamArrayHeader(KMCose.COSE_MAC0_ENTRY_COUNT);
+    encoder.streamTextString(context, (short) 0, (short) context.length);
+    streamByteBlob(encoder, protectedHeader);
+    streamByteBlob(encoder, extAad);
+    if (payload != KMType.INVALID_VALUE) {
+      streamByteBlob(encoder, payload);
+    }
+    return (short) (encoder.getStreamOffset() - startOff);
+  }
+
+  /**
+   * Encodes the COSE_MAC0 object with empty unprotected headers straight into the buffer. The
+   * output is identical to encoding the array returned by constructCoseMac0.
+   *
+   * @param encoder instance of the cbor encoder.
+   * @param protectedHeader Bstr pointer which holds the protected header.
+   * @param payload Bstr pointer which holds the payload.
+   * @param tag Bstr pointer which holds the tag value.
+   * @param buf output buffer.
+   * @param startOff start offset in the output buffer.
+   * @param bufLen end of the usable region of the output buffer.
+   * @return length of the encoded data.
+   */
+  public static short encodeCoseMac0(
+      KMEncoder encoder,
+      short protectedHeader,
+      short payload,
+      short tag,
+      byte[] buf,
+      short startOff,
+      short bufLen) {
+    encoder.beginStream(buf, startOff, bufLen);
+    encoder.streamArrayHeader(KMCose.COSE_MAC0_ENTRY_COUNT);
+    streamByteBlob(encoder, protectedHeader);
+    encoder.streamMapHeader((short) 0);
+    streamByteBlob(encoder, payload);
+    streamByteBlob(encoder, tag);
+    return (short) (encoder.getStreamOffset() - startOff);
+  }
+
+  private static void streamByteBlob(KMEncoder encoder, short blob) {
+    encoder.streamByteBlob(
+        KMByteBlob.cast(blob).getBuffer(),
+        KMByteBlob.cast(blob).getStartOff(),
+        KMByteBlob.cast(blob).length());
+  }
+
   /**
    * Constructs the COSE_Signature structure.
    *
@@ -776,6 +776,47 @@ public class KMEncoder {
     }
   }
 
+  /**
+   * Starts a streamed encoding. The stream methods below write canonical cbor items straight into
+   * the buffer, in the order they are called, without building a KMType structure first. The
+   * stream ends implicitly with the next call to any other encode method.
+   *
+   * @param buffer output buffer.
+   * @param startOff start offset of the encoded data.
+   * @param bufLen end of the usable region of the buffer.
+   */
+  public void beginStream(byte[] buffer, short startOff, short bufLen) {
+    bufferRef[0] = buffer;
+    scratchBuf[START_OFFSET] = startOff;
+    scratchBuf[LEN_OFFSET] = bufLen;
+  }
+
+  public short getStreamOffset() {
+    return scratchBuf[START_OFFSET];
+  }
+
+  public void streamArrayHeader(short count) {
+    writeMajorTypeWithLength(ARRAY_TYPE, count);
+  }
+
+  public void streamMapHeader(short count) {
+    writeMajorTypeWithLength(MAP_TYPE, count);
+  }
+
+  public void streamByteBlobHeader(short len) {
+    writeMajorTypeWithLength(BYTES_TYPE, len);
+  }
+
+  public void streamByteBlob(byte[] buf, short start, short len) {
+    writeMajorTypeWithLength(BYTES_TYPE, len);
+    writeBytes(buf, start, len);
+  }
+
+  public void streamTextString(byte[] buf, short start, short len) {
+    writeMajorTypeWithLength(TSTR_TYPE, len);
+    writeBytes(buf, start, len);
+  }
+
   public short encodeArrayHeader(short bufLen, byte[] buffer, short startOff, short length) {
     bufferRef[0] = buffer;
     scratchBuf[START_OFFSET] = startOff;
@@ -46,6 +46,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   public static final byte AES_BLOCK_SIZE = 16;
   // Block size of DES algorithm.
   public static final byte DES_BLOCK_SIZE = 8;
+  // Maximum size of the response header of an update operation which is written in front of
+  // the output data: array header, error code and byte string header.
+  private static final byte MAX_UPDATE_RESPONSE_HEADER_SIZE = 5;
   // The Key size in bits for the master key.
   public static final short MASTER_KEY_SIZE = 128;
   // The Key size of the transport key used in importWrappedKey.
@@ -87,7 +90,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   public static final byte TMP_VARIABLE_ARRAY_SIZE = 5;
   // Data Dictionary items
   // Maximum Dictionary size.
-  public static final byte DATA_ARRAY_SIZE = 39;
+  public static final byte DATA_ARRAY_SIZE = 40;
   // Below are the offsets of the data dictionary items.
   public static final byte KEY_PARAMETERS = 0;
   public static final byte KEY_CHARACTERISTICS = 1;
@@ -128,6 +131,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   public static final byte CONFIRMATION_TOKEN = 36;
   public static final byte KEY_BLOB_VERSION_DATA_OFFSET = 37;
   public static final byte CUSTOM_TAGS = 38;
+  public static final byte ENCODED_KEY_CHARS = 39;
   // Below are the Keyblob offsets.
   public static final byte KEY_BLOB_VERSION_OFFSET = 0;
   public static final byte KEY_BLOB_SECRET = 1;
@@ -136,6 +140,14 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   public static final byte KEY_BLOB_PARAMS = 4;
   public static final byte KEY_BLOB_CUSTOM_TAGS = 5;
   public static final byte KEY_BLOB_PUB_KEY = 6;
+  // Below are the Keyblob offsets of KeyBlob Version 4. The elements before the secret have a
+  // fixed size, so they are also at fixed offsets in the encoded KeyBlob.
+  public static final byte KEY_BLOB_V4_VERSION = 0;
+  public static final byte KEY_BLOB_V4_NONCE = 1;
+  public static final byte KEY_BLOB_V4_AUTH_TAG = 2;
+  public static final byte KEY_BLOB_V4_SECRET = 3;
+  public static final byte KEY_BLOB_V4_PARAMS = 4;
+  public static final byte KEY_BLOB_V4_PUB_KEY = 5;
   // AES GCM Auth tag length to be used while encrypting or decrypting the KeyBlob.
   public static final byte AES_GCM_AUTH_TAG_LENGTH = 16;
   // AES GCM nonce length to be used while encrypting or decrypting the KeyBlob.
@@ -144,10 +156,14 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   // the KeyBlobs if it is changed. please increment this
   // version number whenever you change anything related to
   // KeyBlob (structure, encryption algorithm etc).
-  public static final byte KEYBLOB_CURRENT_VERSION = 3;
+  public static final byte KEYBLOB_CURRENT_VERSION = 4;
   // KeyBlob Verion 1 constant.
   public static final byte KEYBLOB_VERSION_1 = 1;
   // Array sizes of KeyBlob under different versions.
+  // The array size of a KeyBlob for Version4 which does not carry the public key.
+  public static final byte KEY_BLOB_SIZE_V4 = 5;
+  // The array size of a KeyBlob for Version4 which carries the public key (RSA keys).
+  public static final byte KEY_BLOB_SIZE_V4_WITH_PUB_KEY = 6;
   // The array size of a Symmetric key's KeyBlob for Version2 and Version3
   public static final byte SYM_KEY_BLOB_SIZE_V2_V3 = 6;
   // The array size of a Asymmetric key's KeyBlob for Version2 and Version3
@@ -198,8 +214,12 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   };
   // The maximum size of the seed allowed for the RNG entropy
   protected static final short MAX_SEED_SIZE = 2048;
-  // The maximum size of the certificate returned by the generate key command.
-  protected static final short MAX_CERT_SIZE = 3000;
+  // The maximum size of the certificate returned by the generate key command. The certificate
+  // buffer is sized from the free heap up to this limit and shrunk to the actual certificate
+  // size once the certificate is built.
+  protected static final short MAX_CERT_SIZE = (short) (KMRepository.HEAP_SIZE / 2 - 1);
+  // The size of the CBOR array and byte string headers preceding the certificate.
+  private static final byte CERT_HEADER_SIZE = 4;
   // The maximum size of the encoded key characteristics in CBOR.
   protected static final short MAX_KEY_CHARS_SIZE = 512;
   // The maximum size of the serialized KeyBlob.
@@ -301,10 +321,28 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   // will never be used by the base line code in future.
   private static final byte INS_KM_VENDOR_START_CMD = (byte) 0xCD;
   private static final byte INS_KM_VENDOR_END_CMD = (byte) 0xFF;
+  // Vendor commands
+  // Generates one RSA key pair into the RSA key pair reserve. Sent by the HAL when idle.
+  private static final byte INS_REFILL_RSA_KEY_RESERVE_CMD = INS_KM_VENDOR_START_CMD; // 0xCD
+  private static final byte INS_GET_RSA_KEY_RESERVE_STATUS_CMD =
+      INS_KM_VENDOR_START_CMD + 1; // 0xCE
+  // Returns the state of the random number prefetch pool.
+  private static final byte INS_GET_RNG_POOL_STATUS_CMD = INS_KM_VENDOR_START_CMD + 2; // 0xCF
+  // Begins, updates and finishes an operation in a single command.
+  private static final byte INS_ONE_SHOT_OPERATION_CMD = INS_KM_VENDOR_START_CMD + 3; // 0xD0
+  // RKP - adds a batch of MACed public keys to the CSR.
+  public static final byte INS_UPDATE_KEYS_CMD = INS_KM_VENDOR_START_CMD + 4; // 0xD1
+  // RKP - generates a batch of RKP key pairs.
+  public static final byte INS_GENERATE_RKP_KEYS_CMD = INS_KM_VENDOR_START_CMD + 5; // 0xD2
   // Index in apduFlagsStatus[] to check if instruction command is case 4 type in the Apdu
   protected static final byte APDU_CASE4_COMMAND_STATUS_INDEX = 0;
   // Index in apduFlagsStatus[] to check if Apdu setIncomingAndReceive function is called
   protected static final byte APDU_INCOMING_AND_RECEIVE_STATUS_INDEX = 1;
+  // Index in apduFlagsStatus[] to check if Apdu setOutgoing function is called
+  protected static final byte APDU_OUTGOING_STATUS_INDEX = 2;
+  // Offset in apduFlagsStatus[] of the response length returned by Apdu setOutgoing (short)
+  protected static final byte APDU_OUTGOING_LENGTH_OFFSET = 3;
+  private static final byte APDU_STATUS_FLAGS_SIZE = 5;
   // The maximum buffer size of combined seed and nonce.
   private static final byte HMAC_SHARED_PARAM_MAX_SIZE = 64;
   // Instance of RemotelyProvisionedComponentDevice, used to redirect the rkp commands.
@@ -320,6 +358,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   // Holds the instance of KMOperationStates. A maximum of 4 instances of KMOperatioState is
   // allowed.
   protected static KMOperationState[] opTable;
+  // Operation state used by the one-shot operation command. It is not part of the opTable, so
+  // one-shot operations never take an operation slot.
+  protected static KMOperationState oneShotOpState;
   // Instance of KMKeymintDataStore which helps to store and retrieve the data.
   protected static KMKeymintDataStore kmDataStore;
 
@@ -350,13 +391,15 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     wrappingKey =
         JCSystem.makeTransientByteArray((short) (WRAPPING_KEY_SIZE + 1), JCSystem.CLEAR_ON_RESET);
     resetWrappingKey();
-    apduStatusFlags = JCSystem.makeTransientByteArray((short) 2, JCSystem.CLEAR_ON_RESET);
+    apduStatusFlags =
+        JCSystem.makeTransientByteArray(APDU_STATUS_FLAGS_SIZE, JCSystem.CLEAR_ON_RESET);
     opTable = new KMOperationState[MAX_OPERATIONS_COUNT];
     short index = 0;
     while (index < MAX_OPERATIONS_COUNT) {
       opTable[index] = new KMOperationState();
       index++;
     }
+    oneShotOpState = new KMOperationState();
     KMType.initialize();
     if (!isUpgrading) {
       // For keyMint 3.0 and above installation, set ignore second Imei flag to false.
@@ -381,7 +424,22 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     if (((short) (bufferLength + bufferStartOffset)) > ((short) repository.getHeap().length)) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
     }
+    setOutgoing(apdu);
+    apdu.setOutgoingLength(bufferLength);
+    apdu.sendBytesLong(buffer, bufferStartOffset, bufferLength);
+  }
 
+  /**
+   * Switches the apdu to outgoing mode. A command may call this early to size its response from
+   * the length expected by the host; later calls, including the one made when sending an error
+   * response, only return the recorded length.
+   *
+   * @return the response length expected by the host.
+   */
+  public static short setOutgoing(APDU apdu) {
+    if (apduStatusFlags[APDU_OUTGOING_STATUS_INDEX] == 1) {
+      return Util.getShort(apduStatusFlags, APDU_OUTGOING_LENGTH_OFFSET);
+    }
     /* In T=0 protocol, On a case 4 command, setIncomingAndReceive() must
      * be invoked prior to calling setOutgoing(). Otherwise, erroneous
      * behavior may result
@@ -391,8 +449,17 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         && APDU.getProtocol() == APDU.PROTOCOL_T0) {
       apdu.setIncomingAndReceive();
     }
+    short expectedLen = apdu.setOutgoing();
+    apduStatusFlags[APDU_OUTGOING_STATUS_INDEX] = 1;
+    Util.setShort(apduStatusFlags, APDU_OUTGOING_LENGTH_OFFSET, expectedLen);
+    return expectedLen;
+  }
+
+  /** Sends the already encoded response data. */
+  public static void sendOutgoing(
+      APDU apdu, byte[] buffer, short bufferStartOffset, short bufferLength) {
     // Send data
-    apdu.setOutgoing();
+    setOutgoing(apdu);
     apdu.setOutgoingLength(bufferLength);
     apdu.sendBytesLong(buffer, bufferStartOffset, bufferLength);
   }
@@ -419,21 +486,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     return req;
   }
 
-  private static short createKeyBlobInstance(byte keyType) {
-    short arrayLen = 0;
-    switch (keyType) {
-      case ASYM_KEY_TYPE:
-        arrayLen = ASYM_KEY_BLOB_SIZE_V2_V3;
-        break;
-      case SYM_KEY_TYPE:
-        arrayLen = SYM_KEY_BLOB_SIZE_V2_V3;
-        break;
-      default:
-        KMException.throwIt(KMError.UNSUPPORTED_ALGORITHM);
-    }
-    return KMArray.instance(arrayLen);
-  }
-
   private static void addTags(short params, boolean hwEnforced, KMAttestationCert cert) {
     short index = 0;
     short arr = KMKeyParameters.cast(params).getVals();
@@ -496,18 +548,26 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     short[] lengths = tmpVariables;
     data[PUB_KEY] = KMByteBlob.instance((short) 256);
     data[SECRET] = KMByteBlob.instance((short) 256);
-    seProvider.createAsymmetricKey(
-        KMType.RSA,
+    // The public exponent is validated to be F4, so a pre-generated key pair from the reserve
+    // can be used. Generate a fresh key pair only if the reserve is empty.
+    if (!seProvider.takeReservedRsaKeyPair(
         KMByteBlob.cast(data[SECRET]).getBuffer(),
         KMByteBlob.cast(data[SECRET]).getStartOff(),
         KMByteBlob.cast(data[SECRET]).length(),
         KMByteBlob.cast(data[PUB_KEY]).getBuffer(),
         KMByteBlob.cast(data[PUB_KEY]).getStartOff(),
         KMByteBlob.cast(data[PUB_KEY]).length(),
-        lengths);
-
-    data[KEY_BLOB] = createKeyBlobInstance(ASYM_KEY_TYPE);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
+        lengths)) {
+      seProvider.createAsymmetricKey(
+          KMType.RSA,
+          KMByteBlob.cast(data[SECRET]).getBuffer(),
+          KMByteBlob.cast(data[SECRET]).getStartOff(),
+          KMByteBlob.cast(data[SECRET]).length(),
+          KMByteBlob.cast(data[PUB_KEY]).getBuffer(),
+          KMByteBlob.cast(data[PUB_KEY]).getStartOff(),
+          KMByteBlob.cast(data[PUB_KEY]).length(),
+          lengths);
+    }
   }
 
   private static void validateAESKey() {
@@ -548,7 +608,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMIntegerTag.getShortValue(KMType.UINT_TAG, KMType.KEYSIZE, data[KEY_PARAMETERS]);
     short len = seProvider.createSymmetricKey(KMType.AES, keysize, scratchPad, (short) 0);
     data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, len);
-    data[KEY_BLOB] = createKeyBlobInstance(SYM_KEY_TYPE);
   }
 
   private static void validateECKeys() {
@@ -580,8 +639,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         lengths);
     data[PUB_KEY] = KMByteBlob.instance(scratchPad, (short) 128, lengths[1]);
     data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, lengths[0]);
-    data[KEY_BLOB] = createKeyBlobInstance(ASYM_KEY_TYPE);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
   }
 
   private static void validateTDESKey() {
@@ -597,7 +654,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     validateTDESKey();
     short len = seProvider.createSymmetricKey(KMType.DES, (short) 168, scratchPad, (short) 0);
     data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, len);
-    data[KEY_BLOB] = createKeyBlobInstance(SYM_KEY_TYPE);
   }
 
   private static void validateHmacKey() {
@@ -637,7 +693,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // generate HMAC Key
     short len = seProvider.createSymmetricKey(KMType.HMAC, keysize, scratchPad, (short) 0);
     data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, len);
-    data[KEY_BLOB] = createKeyBlobInstance(SYM_KEY_TYPE);
   }
 
   // This function is only called from processUpgradeKey command.
@@ -695,24 +750,39 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     data[HIDDEN_PARAMETERS] =
         KMKeyParameters.makeHidden(data[KEY_PARAMETERS], data[ROT], scratchPad);
     data[KEY_BLOB_VERSION_DATA_OFFSET] = KMInteger.uint_16(KEYBLOB_CURRENT_VERSION);
-    // create custom tags
+    // create custom tags. Custom tags are derived from the HW_PARAMETERS, so they are not stored
+    // in the KeyBlob.
     data[CUSTOM_TAGS] = KMKeyParameters.makeCustomTags(data[HW_PARAMETERS], scratchPad);
-    // encrypt the secret and cryptographically attach that to authorization data
-    encryptSecret(scratchPad);
-    // create key blob array
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_SECRET, data[SECRET]);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_AUTH_TAG, data[AUTH_TAG]);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_NONCE, data[NONCE]);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_VERSION_OFFSET, data[KEY_BLOB_VERSION_DATA_OFFSET]);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_CUSTOM_TAGS, data[CUSTOM_TAGS]);
-
+    // Encode the KeyBlob's KeyCharacteristics once. The encoded bytes are stored in the KeyBlob
+    // as they are and authenticated as a single span.
     short tempChar = KMKeyCharacteristics.instance();
     short emptyParam = KMArray.instance((short) 0);
     emptyParam = KMKeyParameters.instance(emptyParam);
     KMKeyCharacteristics.cast(tempChar).setStrongboxEnforced(data[SB_PARAMETERS]);
     KMKeyCharacteristics.cast(tempChar).setKeystoreEnforced(emptyParam);
     KMKeyCharacteristics.cast(tempChar).setTeeEnforced(data[TEE_PARAMETERS]);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PARAMS, tempChar);
+    short prevReclaimIndex = repository.getHeapReclaimIndex();
+    short offset = repository.allocReclaimableMemory(MAX_KEY_CHARS_SIZE);
+    short len =
+        encoder.encode(
+            tempChar, repository.getHeap(), offset, prevReclaimIndex, MAX_KEY_CHARS_SIZE);
+    data[ENCODED_KEY_CHARS] = KMByteBlob.instance(repository.getHeap(), offset, len);
+    repository.reclaimMemory(MAX_KEY_CHARS_SIZE);
+    // encrypt the secret and cryptographically attach that to authorization data
+    encryptSecret(scratchPad);
+    // create key blob array. Only RSA keys need the public key when the key is used, so the
+    // public key of EC keys is not stored.
+    if (isPubKeyInKeyBlob(data[HW_PARAMETERS])) {
+      data[KEY_BLOB] = KMArray.instance(KEY_BLOB_SIZE_V4_WITH_PUB_KEY);
+      KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_V4_PUB_KEY, data[PUB_KEY]);
+    } else {
+      data[KEY_BLOB] = KMArray.instance(KEY_BLOB_SIZE_V4);
+    }
+    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_V4_VERSION, data[KEY_BLOB_VERSION_DATA_OFFSET]);
+    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_V4_NONCE, data[NONCE]);
+    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_V4_AUTH_TAG, data[AUTH_TAG]);
+    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_V4_SECRET, data[SECRET]);
+    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_V4_PARAMS, data[ENCODED_KEY_CHARS]);
   }
 
   // Read RoT
@@ -773,6 +843,12 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, len);
   }
 
+  // Returns true if the public key is stored in the KeyBlob. From KeyBlob V4 onwards only RSA
+  // KeyBlobs carry the public key.
+  private static boolean isPubKeyInKeyBlob(short hardwareParams) {
+    return KMEnumTag.getValue(KMType.ALGORITHM, hardwareParams) == KMType.RSA;
+  }
+
   private static byte getKeyType(short hardwareParams) {
     short alg = KMKeyParameters.findTag(KMType.ENUM_TAG, KMType.ALGORITHM, hardwareParams);
     if (KMEnumTag.cast(alg).getValue() == KMType.RSA
@@ -894,7 +970,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     return len;
   }
 
-  private static short deriveKey(byte[] scratchPad) {
+  private static short deriveKeyV3(byte[] scratchPad) {
     // For KeyBlob V3: Auth Data includes HW_PARAMETERS, HIDDEN_PARAMETERS, CUSTOM_TAGS, VERSION and
     // PUB_KEY.
     short index = 0;
@@ -968,6 +1044,78 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     return len;
   }
 
+  private static short deriveKey(byte[] scratchPad) {
+    // For KeyBlob V4: Auth Data includes VERSION, HIDDEN_PARAMETERS, the encoded KeyBlob
+    // KeyCharacteristics and PUB_KEY (Only for RSA Keys). The encoded KeyCharacteristics and the
+    // PUB_KEY are authenticated as they are stored in the KeyBlob, so they are not re-encoded.
+    short prevReclaimIndex = repository.getHeapReclaimIndex();
+    short authIndex = repository.allocReclaimableMemory(MAX_AUTH_DATA_SIZE);
+    Util.arrayFillNonAtomic(repository.getHeap(), authIndex, MAX_AUTH_DATA_SIZE, (byte) 0);
+    short len = 0;
+    KMOperation operation = null;
+    try {
+      operation =
+          seProvider.initSymmetricOperation(
+              KMType.SIGN,
+              KMType.HMAC,
+              KMType.SHA2_256,
+              KMType.PADDING_NONE,
+              (byte) KMType.INVALID_VALUE,
+              (Object) kmDataStore.getMasterKey(),
+              KMDataStoreConstants.INTERFACE_TYPE_MASTER_KEY,
+              (byte[]) null,
+              (short) 0,
+              (short) 0,
+              (short) 0,
+              false);
+      // 1. VERSION
+      len =
+          encoder.encode(
+              data[KEY_BLOB_VERSION_DATA_OFFSET],
+              repository.getHeap(),
+              authIndex,
+              prevReclaimIndex);
+      operation.update(repository.getHeap(), authIndex, len);
+      // 2. HIDDEN_PARAMETERS
+      len =
+          encoder.encode(
+              KMKeyParameters.cast(data[HIDDEN_PARAMETERS]).getVals(),
+              repository.getHeap(),
+              authIndex,
+              prevReclaimIndex);
+      operation.update(repository.getHeap(), authIndex, len);
+      repository.reclaimMemory(MAX_AUTH_DATA_SIZE);
+      // 3. Encoded KeyCharacteristics
+      operation.update(
+          KMByteBlob.cast(data[ENCODED_KEY_CHARS]).getBuffer(),
+          KMByteBlob.cast(data[ENCODED_KEY_CHARS]).getStartOff(),
+          KMByteBlob.cast(data[ENCODED_KEY_CHARS]).length());
+      // 4. PUB_KEY ( Only for RSA Keys)
+      if (isPubKeyInKeyBlob(data[HW_PARAMETERS])) {
+        operation.update(
+            KMByteBlob.cast(data[PUB_KEY]).getBuffer(),
+            KMByteBlob.cast(data[PUB_KEY]).getStartOff(),
+            KMByteBlob.cast(data[PUB_KEY]).length());
+      }
+      // KeyDerivation:
+      // 1. Do HMAC Sign, Auth data.
+      // 2. HMAC Sign generates an output of 32 bytes length.
+      // Consume only first 16 bytes as derived key.
+      // Hmac sign.
+      len = operation.sign(scratchPad, (short) 0, (short) 0, scratchPad, (short) 0);
+    } finally {
+      if (operation != null) {
+        operation.abort();
+      }
+    }
+    if (len < 16) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
+    }
+    len = 16;
+    data[DERIVED_KEY] = KMByteBlob.instance(scratchPad, (short) 0, len);
+    return len;
+  }
+
   public static void sendResponse(APDU apdu, short err) {
     short resp = KMArray.instance((short) 1);
     err = KMError.translate(err);
@@ -1082,14 +1230,18 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     short arr = KMArray.instance((short) 0);
     short unprotectedHeader = KMCoseHeaders.instance(arr);
 
-    // construct cose sign structure.
-    short coseSignStructure =
-        KMCose.constructCoseSignStructure(protectedHeader, KMByteBlob.instance((short) 0), payload);
     // temp temporarily holds the length of encoded sign structure.
     // Encode cose Sign_Structure.
     temp =
-        KMKeymasterApplet.encodeToApduBuffer(
-            coseSignStructure, scratchPad, (short) 0, KMKeymasterApplet.MAX_COSE_BUF_SIZE);
+        KMCose.encodeCoseStructure(
+            encoder,
+            KMCose.SIGNATURE1_CONTEXT,
+            protectedHeader,
+            KMByteBlob.instance((short) 0),
+            payload,
+            scratchPad,
+            (short) 0,
+            KMKeymasterApplet.MAX_COSE_BUF_SIZE);
     // do sign
     short len =
         seProvider.signWithDeviceUniqueKey(
@@ -1097,11 +1249,11 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     len =
         KMAsn1Parser.instance()
             .decodeEcdsa256Signature(KMByteBlob.instance(scratchPad, temp, len), scratchPad, temp);
-    coseSignStructure = KMByteBlob.instance(scratchPad, temp, len);
+    short signature = KMByteBlob.instance(scratchPad, temp, len);
 
     // construct cose_sign1
     short coseSign1 =
-        KMCose.constructCoseSign1(protectedHeader, unprotectedHeader, payload, coseSignStructure);
+        KMCose.constructCoseSign1(protectedHeader, unprotectedHeader, payload, signature);
 
     // [Cose_Key, Cose_Sign1]
     short dcc = KMArray.instance((short) 2);
@@ -1123,6 +1275,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       opTable[index].reset();
       index++;
     }
+    oneShotOpState.reset();
   }
 
   private KMOperationState reserveOperation(short algorithm, short opHandle) {
@@ -1243,6 +1396,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       case INS_FINISH_SEND_DATA_CMD:
       case INS_GET_UDS_CERTS_CMD:
       case INS_GET_DICE_CERT_CHAIN_CMD:
+      case INS_REFILL_RSA_KEY_RESERVE_CMD:
+      case INS_GET_RSA_KEY_RESERVE_STATUS_CMD:
+      case INS_GET_RNG_POOL_STATUS_CMD:
         apduStatusFlags[APDU_CASE4_COMMAND_STATUS_INDEX] = 0;
         break;
       default:
@@ -1362,6 +1518,23 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         case INS_SEND_ROT_DATA_CMD:
           processSendRootOfTrust(apdu);
           break;
+          // Vendor commands
+        case INS_REFILL_RSA_KEY_RESERVE_CMD:
+          processRefillRsaKeyReserveCmd(apdu);
+          break;
+        case INS_GET_RSA_KEY_RESERVE_STATUS_CMD:
+          processGetRsaKeyReserveStatusCmd(apdu);
+          break;
+        case INS_GET_RNG_POOL_STATUS_CMD:
+          processGetRngPoolStatusCmd(apdu);
+          break;
+        case INS_ONE_SHOT_OPERATION_CMD:
+          processOneShotOperationCmd(apdu);
+          break;
+        case INS_UPDATE_KEYS_CMD:
+        case INS_GENERATE_RKP_KEYS_CMD:
+          rkp.process(apduIns, apdu);
+          break;
         default:
           ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
       }
@@ -1386,6 +1559,44 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     }
   }
 
+  private void processRefillRsaKeyReserveCmd(APDU apdu) {
+    // No arguments expected. Only one key pair is generated per command so that the command
+    // does not exceed the time of a single RSA key generation.
+    short depth = seProvider.refillRsaKeyPairReserve();
+    short resp = KMArray.instance((short) 2);
+    KMArray.cast(resp).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(resp).add((short) 1, KMInteger.uint_16(depth));
+    sendOutgoing(apdu, resp);
+  }
+
+  private void processGetRsaKeyReserveStatusCmd(APDU apdu) {
+    // No arguments expected.
+    byte[] scratchPad = apdu.getBuffer();
+    seProvider.getRsaKeyPairReserveStatus(scratchPad, (short) 0);
+    // Response = [OK, depth, capacity, hits, misses]
+    short resp = KMArray.instance((short) 5);
+    KMArray.cast(resp).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(resp).add((short) 1, KMInteger.uint_16(Util.getShort(scratchPad, (short) 0)));
+    KMArray.cast(resp).add((short) 2, KMInteger.uint_16(Util.getShort(scratchPad, (short) 2)));
+    KMArray.cast(resp).add((short) 3, KMInteger.uint_16(Util.getShort(scratchPad, (short) 4)));
+    KMArray.cast(resp).add((short) 4, KMInteger.uint_16(Util.getShort(scratchPad, (short) 6)));
+    sendOutgoing(apdu, resp);
+  }
+
+  private void processGetRngPoolStatusCmd(APDU apdu) {
+    // No arguments expected.
+    byte[] scratchPad = apdu.getBuffer();
+    seProvider.getRngPoolStatus(scratchPad, (short) 0);
+    // Response = [OK, available, capacity, refills, reseeds]
+    short resp = KMArray.instance((short) 5);
+    KMArray.cast(resp).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(resp).add((short) 1, KMInteger.uint_16(Util.getShort(scratchPad, (short) 0)));
+    KMArray.cast(resp).add((short) 2, KMInteger.uint_16(Util.getShort(scratchPad, (short) 2)));
+    KMArray.cast(resp).add((short) 3, KMInteger.uint_16(Util.getShort(scratchPad, (short) 4)));
+    KMArray.cast(resp).add((short) 4, KMInteger.uint_16(Util.getShort(scratchPad, (short) 6)));
+    sendOutgoing(apdu, resp);
+  }
+
   private void processGetRootOfTrustChallenge(APDU apdu) {
     byte[] scratchpad = apdu.getBuffer();
     // Generate 16-byte random challenge nonce, used to prove freshness when exchanging root of
@@ -1445,14 +1656,16 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     short extAad = KMByteBlob.instance(scratchPad, (short) 0, len);
     // Compute CoseMac Structure and compare the macs.
     short rotPayload = KMArray.cast(coseMacPtr).get(KMCose.COSE_MAC0_PAYLOAD_OFFSET);
-    short macStructure =
-        KMCose.constructCoseMacStructure(
+    short encodedLen =
+        KMCose.encodeCoseStructure(
+            encoder,
+            KMCose.MAC_CONTEXT,
             KMArray.cast(coseMacPtr).get(KMCose.COSE_MAC0_PROTECTED_PARAMS_OFFSET),
             extAad,
-            rotPayload);
-    short encodedLen =
-        KMKeymasterApplet.encodeToApduBuffer(
-            macStructure, scratchPad, (short) 0, KMKeymasterApplet.MAX_COSE_BUF_SIZE);
+            rotPayload,
+            scratchPad,
+            (short) 0,
+            KMKeymasterApplet.MAX_COSE_BUF_SIZE);
 
     if (!seProvider.hmacVerify(
         kmDataStore.getComputedHmacKey(),
@@ -1472,6 +1685,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     if (((scratchPad[0] & KMKeymintDataStore.SET_BOOT_PARAMS_SUCCESS) == 0)) {
       // store the data.
       storeRootOfTrust(rotPayload, scratchPad);
+      KMAttestationCertImpl.invalidateRootOfTrustTemplate();
       kmDataStore.setDeviceBootStatus(KMKeymintDataStore.SET_BOOT_PARAMS_SUCCESS);
     }
     // Invalidate the challenge
@@ -1637,6 +1851,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   protected void resetTransientBuffers() {
+    apduStatusFlags[APDU_OUTGOING_STATUS_INDEX] = 0;
     short index = 0;
     while (index < data.length) {
       data[index] = KMType.INVALID_VALUE;
@@ -1694,19 +1909,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     Util.setShort(buffer, bufferStartOffset, (short) 0x8400);
 
     short bufferLength = (short) (KMRepository.HEAP_SIZE - bufferStartOffset);
-    /* In T=0 protocol, On a case 4 command, setIncomingAndReceive() must
-     * be invoked prior to calling setOutgoing(). Otherwise, erroneous
-     * behavior may result
-     * */
-    if (apduStatusFlags[APDU_CASE4_COMMAND_STATUS_INDEX] == 1
-        && apduStatusFlags[APDU_INCOMING_AND_RECEIVE_STATUS_INDEX] == 0
-        && APDU.getProtocol() == APDU.PROTOCOL_T0) {
-      apdu.setIncomingAndReceive();
-    }
-    // Send data
-    apdu.setOutgoing();
-    apdu.setOutgoingLength(bufferLength);
-    apdu.sendBytesLong(buffer, bufferStartOffset, bufferLength);
+    sendOutgoing(apdu, buffer, bufferStartOffset, bufferLength);
   }
 
   private void processGetHwInfoCmd(APDU apdu) {
@@ -1845,6 +2048,15 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMArray.cast(keyBlob).add(KMKeymasterApplet.KEY_BLOB_CUSTOM_TAGS, keyParam);
         KMArray.cast(keyBlob).add(KMKeymasterApplet.KEY_BLOB_PUB_KEY, byteBlobExp);
         break;
+      case (short) 4:
+        keyBlob = KMArray.instance(KEY_BLOB_SIZE_V4_WITH_PUB_KEY);
+        KMArray.cast(keyBlob).add(KEY_BLOB_V4_VERSION, KMInteger.exp());
+        KMArray.cast(keyBlob).add(KEY_BLOB_V4_NONCE, byteBlobExp);
+        KMArray.cast(keyBlob).add(KEY_BLOB_V4_AUTH_TAG, byteBlobExp);
+        KMArray.cast(keyBlob).add(KEY_BLOB_V4_SECRET, byteBlobExp);
+        KMArray.cast(keyBlob).add(KEY_BLOB_V4_PARAMS, byteBlobExp); // Encoded KeyChars
+        KMArray.cast(keyBlob).add(KEY_BLOB_V4_PUB_KEY, byteBlobExp);
+        break;
       default:
         KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
@@ -2064,18 +2276,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     if (isKeyUpgradeRequired) {
       // copy origin
       data[ORIGIN] = KMEnumTag.getValue(KMType.ORIGIN, data[HW_PARAMETERS]);
-      byte keyType = getKeyType(data[HW_PARAMETERS]);
-      switch (keyType) {
-        case ASYM_KEY_TYPE:
-          data[KEY_BLOB] = KMArray.instance(ASYM_KEY_BLOB_SIZE_V2_V3);
-          KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
-          break;
-        case SYM_KEY_TYPE:
-          data[KEY_BLOB] = KMArray.instance(SYM_KEY_BLOB_SIZE_V2_V3);
-          break;
-        default:
-          KMException.throwIt(KMError.UNSUPPORTED_ALGORITHM);
-      }
       // Update the system properties to the latest values and also re-create the KeyBlob's
       // KeyCharacteristics to make sure all the values are up-to-date with the latest applet
       // changes.
@@ -2514,35 +2714,21 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     byte index = 0;
     short attIdTag;
     short attIdTagValue;
-    short storedAttIdLen;
     while (index < (short) attTags.length) {
       attIdTag = KMKeyParameters.findTag(KMType.BYTES_TAG, attTags[index], data[KEY_PARAMETERS]);
       if (attIdTag != KMType.INVALID_VALUE) {
         attIdTagValue = KMByteTag.cast(attIdTag).getValue();
-        storedAttIdLen = kmDataStore.getAttestationId(attTags[index], scratchPad, (short) 0);
-        // Return CANNOT_ATTEST_IDS if Attestation IDs are not provisioned or
-        // Attestation IDs are deleted.
-        if (storedAttIdLen == 0) {
-          // Ignore the SECOND_IMEI tag if the previous Applet's KeyMint version is less than
-          // 3.0 and no SECOND_IMEI is provisioned.
-          if (!(kmDataStore.ignoreSecondImei
-              && attTags[index] == KMType.ATTESTATION_ID_SECOND_IMEI)) {
-            KMException.throwIt(KMError.CANNOT_ATTEST_IDS);
-          }
-        } else {
-          // Return INVALID_TAG if Attestation IDs does not match.
-          if ((storedAttIdLen != KMByteBlob.cast(attIdTagValue).length())
-              || (0
-                  != Util.arrayCompare(
-                      scratchPad,
-                      (short) 0,
-                      KMByteBlob.cast(attIdTagValue).getBuffer(),
-                      KMByteBlob.cast(attIdTagValue).getStartOff(),
-                      storedAttIdLen))) {
-            KMException.throwIt(KMError.CANNOT_ATTEST_IDS);
-          }
-          short blob = KMByteBlob.instance(scratchPad, (short) 0, storedAttIdLen);
-          cert.extensionTag(KMByteTag.instance(attTags[index], blob), true);
+        // Compare the requested id with the provisioned id in place. Return CANNOT_ATTEST_IDS if
+        // Attestation IDs are not provisioned, deleted or do not match. The SECOND_IMEI tag is
+        // ignored if the previous Applet's KeyMint version is less than 3.0 and no SECOND_IMEI
+        // is provisioned.
+        if (kmDataStore.compareAttestationId(
+            attTags[index],
+            KMByteBlob.cast(attIdTagValue).getBuffer(),
+            KMByteBlob.cast(attIdTagValue).getStartOff(),
+            KMByteBlob.cast(attIdTagValue).length())) {
+          // The requested tag is identical to the provisioned id so it is added as it is.
+          cert.extensionTag(attIdTag, true);
         }
       }
       index++;
@@ -2605,6 +2791,21 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     }
     // Authorize the finish operation
     authorizeUpdateFinishOperation(op, scratchPad);
+    finishOperation(op, scratchPad);
+    if (data[OUTPUT_DATA] == KMType.INVALID_VALUE) {
+      data[OUTPUT_DATA] = KMByteBlob.instance((short) 0);
+    }
+    // Remove the operation handle
+    releaseOperation(op);
+
+    // make response
+    short resp = KMArray.instance((short) 2);
+    KMArray.cast(resp).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(resp).add((short) 1, data[OUTPUT_DATA]);
+    sendOutgoing(apdu, resp);
+  }
+
+  private void finishOperation(KMOperationState op, byte[] scratchPad) {
     switch (op.getPurpose()) {
       case KMType.SIGN:
         finishTrustedConfirmationOperation(op);
@@ -2621,17 +2822,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         finishKeyAgreementOperation(op, scratchPad);
         break;
     }
-    if (data[OUTPUT_DATA] == KMType.INVALID_VALUE) {
-      data[OUTPUT_DATA] = KMByteBlob.instance((short) 0);
-    }
-    // Remove the operation handle
-    releaseOperation(op);
-
-    // make response
-    short resp = KMArray.instance((short) 2);
-    KMArray.cast(resp).add((short) 0, KMInteger.uint_16(KMError.OK));
-    KMArray.cast(resp).add((short) 1, data[OUTPUT_DATA]);
-    sendOutgoing(apdu, resp);
   }
 
   private void finishEncryptOperation(KMOperationState op, byte[] scratchPad) {
@@ -3084,11 +3274,14 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
           }
         }
       }
-      // Allocate output buffer as input data is already block aligned
-      data[OUTPUT_DATA] = KMByteBlob.instance((short) (len + 2 * blockSize));
-      // Otherwise just update the data.
       // HAL consumes all the input and maintains a buffered data inside it. So the
       // applet sends the inputConsumed length as same as the input length.
+      if (isInPlaceUpdateAllowed(op, len, blockSize)) {
+        updateCipherOperationInPlace(apdu, op, blockSize);
+        return;
+      }
+      // Allocate output buffer as input data may not be block aligned
+      data[OUTPUT_DATA] = KMByteBlob.instance((short) (len + 2 * blockSize));
       try {
         len =
             op.getOperation()
@@ -3125,6 +3318,60 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     sendOutgoing(apdu, resp);
   }
 
+  // Cipher.update only allows the output to overlap the input in the same array for block aligned
+  // input, and only when the output starts at or before the input. Streaming modes (CTR, GCM)
+  // and unaligned input are therefore updated into a separate output buffer.
+  private boolean isInPlaceUpdateAllowed(KMOperationState op, short len, short blockSize) {
+    return (op.getBlockMode() == KMType.ECB || op.getBlockMode() == KMType.CBC)
+        && (short) (len % blockSize) == 0;
+  }
+
+  // Updates the cipher operation and sends the response without allocating an output buffer.
+  // Must only be used for block aligned ECB and CBC input, see isInPlaceUpdateAllowed.
+  // The auth tokens which are decoded after the input data are not needed once the operation
+  // is authorized, so the heap from the start of the input data blob onwards is reused. The input
+  // data is moved up by one block and the output is written over it, starting one block before
+  // the input. The cipher may hold back up to a full block, e.g. for PKCS7 decryption, so the
+  // output can exceed the input by at most one block and never overwrites input data which is not
+  // consumed yet. The response header is then written in front of the output and the response is
+  // sent from the heap.
+  private void updateCipherOperationInPlace(APDU apdu, KMOperationState op, short blockSize) {
+    byte[] heap = repository.getHeap();
+    short inputLen = KMByteBlob.cast(data[INPUT_DATA]).length();
+    short outputStart = (short) (data[INPUT_DATA] + MAX_UPDATE_RESPONSE_HEADER_SIZE);
+    short inputStart = (short) (outputStart + blockSize);
+    short end = (short) (inputStart + inputLen);
+    if (end > repository.getHeapIndex()) {
+      repository.alloc((short) (end - repository.getHeapIndex()));
+    }
+    Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(data[INPUT_DATA]).getBuffer(),
+        KMByteBlob.cast(data[INPUT_DATA]).getStartOff(),
+        heap,
+        inputStart,
+        inputLen);
+    short len = 0;
+    try {
+      len = op.getOperation().update(heap, inputStart, inputLen, heap, outputStart);
+    } catch (CryptoException e) {
+      KMException.throwIt(KMError.INVALID_TAG);
+    }
+    if (inputLen > 0) {
+      // This flag is used to denote that an input data of length > 0 is received and processed
+      // successfully in update command. This flag is later used in the finish operation
+      // to handle a particular use case, where a zero length input data on AES/DES algorithm
+      // with PADDING_NONE should return a zero length output with OK response.
+      op.setProcessedInputMsg(true);
+    }
+    // Response = [OK, output]
+    short headerLen = encoder.getEncodedBytesLength(len);
+    short responseStart = (short) (outputStart - headerLen);
+    encoder.encodeByteBlobHeader(len, heap, responseStart, headerLen);
+    responseStart -= 2;
+    Util.setShort(heap, responseStart, (short) 0x8200);
+    sendOutgoing(apdu, heap, responseStart, (short) (outputStart + len - responseStart));
+  }
+
   private short updateAadOperationCmd(APDU apdu) {
     short cmd = KMArray.instance((short) 4);
     KMArray.cast(cmd).add((short) 0, KMInteger.exp());
@@ -3204,23 +3451,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     data[KEY_PARAMETERS] = KMArray.cast(cmd).get((short) 2);
     data[HW_TOKEN] = KMArray.cast(cmd).get((short) 3);
     purpose = KMEnum.cast(purpose).getVal();
-    // Check for app id and app data.
-    data[APP_ID] = getApplicationId(data[KEY_PARAMETERS]);
-    data[APP_DATA] = getApplicationData(data[KEY_PARAMETERS]);
-    // Check if key requires upgrade. The KeyBlob is parsed inside isKeyUpgradeRequired
-    // function itself.
-    if (isKeyUpgradeRequired(data[KEY_BLOB], data[APP_ID], data[APP_DATA], scratchPad)) {
-      KMException.throwIt(KMError.KEY_REQUIRES_UPGRADE);
-    }
-    KMTag.assertPresence(
-        data[SB_PARAMETERS], KMType.ENUM_TAG, KMType.ALGORITHM, KMError.UNSUPPORTED_ALGORITHM);
-    short algorithm = KMEnumTag.getValue(KMType.ALGORITHM, data[SB_PARAMETERS]);
-    // If Blob usage tag is present in key characteristics then it should be standalone.
-    if (KMTag.isPresent(data[SB_PARAMETERS], KMType.ENUM_TAG, KMType.BLOB_USAGE_REQ)) {
-      if (KMEnumTag.getValue(KMType.BLOB_USAGE_REQ, data[SB_PARAMETERS]) != KMType.STANDALONE) {
-        KMException.throwIt(KMError.UNSUPPORTED_TAG);
-      }
-    }
+    short algorithm = parseOperationKeyBlob(scratchPad);
 
     // Generate a random number for operation handle
     short buf = KMByteBlob.instance(KMOperationState.OPERATION_HANDLE_SIZE);
@@ -3242,6 +3473,45 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     op.setPurpose((byte) purpose);
     op.setKeySize(KMByteBlob.cast(data[SECRET]).length());
     authorizeAndBeginOperation(op, scratchPad);
+    beginOperation(op);
+    short macLen = 0;
+    if (op.getMacLength() != KMType.INVALID_VALUE) {
+      macLen = (short) (op.getMacLength() / 8);
+    }
+    short params = makeBeginOperationParams(op);
+    short resp = KMArray.instance((short) 5);
+    KMArray.cast(resp).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(resp).add((short) 1, params);
+    KMArray.cast(resp).add((short) 2, data[OP_HANDLE]);
+    KMArray.cast(resp).add((short) 3, KMInteger.uint_8(op.getBufferingMode()));
+    KMArray.cast(resp).add((short) 4, KMInteger.uint_16(macLen));
+    sendOutgoing(apdu, resp);
+  }
+
+  // Parses the KeyBlob in data[KEY_BLOB] for a begin operation and returns the algorithm of
+  // the key.
+  private short parseOperationKeyBlob(byte[] scratchPad) {
+    // Check for app id and app data.
+    data[APP_ID] = getApplicationId(data[KEY_PARAMETERS]);
+    data[APP_DATA] = getApplicationData(data[KEY_PARAMETERS]);
+    // Check if key requires upgrade. The KeyBlob is parsed inside isKeyUpgradeRequired
+    // function itself.
+    if (isKeyUpgradeRequired(data[KEY_BLOB], data[APP_ID], data[APP_DATA], scratchPad)) {
+      KMException.throwIt(KMError.KEY_REQUIRES_UPGRADE);
+    }
+    KMTag.assertPresence(
+        data[SB_PARAMETERS], KMType.ENUM_TAG, KMType.ALGORITHM, KMError.UNSUPPORTED_ALGORITHM);
+    short algorithm = KMEnumTag.getValue(KMType.ALGORITHM, data[SB_PARAMETERS]);
+    // If Blob usage tag is present in key characteristics then it should be standalone.
+    if (KMTag.isPresent(data[SB_PARAMETERS], KMType.ENUM_TAG, KMType.BLOB_USAGE_REQ)) {
+      if (KMEnumTag.getValue(KMType.BLOB_USAGE_REQ, data[SB_PARAMETERS]) != KMType.STANDALONE) {
+        KMException.throwIt(KMError.UNSUPPORTED_TAG);
+      }
+    }
+    return algorithm;
+  }
+
+  private void beginOperation(KMOperationState op) {
     switch (op.getPurpose()) {
       case KMType.SIGN:
         beginTrustedConfirmationOperation(op);
@@ -3259,6 +3529,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMException.throwIt(KMError.UNIMPLEMENTED);
         break;
     }
+  }
+
+  // Returns the key parameters which are sent back to the host once the operation has begun.
+  private short makeBeginOperationParams(KMOperationState op) {
     short iv = KMType.INVALID_VALUE;
     // If the data[IV] is required to be returned.
     // As per VTS, for the decryption operation don't send the iv back.
@@ -3283,18 +3557,67 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     } else {
       iv = KMArray.instance((short) 0);
     }
-    short macLen = 0;
-    if (op.getMacLength() != KMType.INVALID_VALUE) {
-      macLen = (short) (op.getMacLength() / 8);
+    return KMKeyParameters.instance(iv);
+  }
+
+  private short oneShotOperationCmd(APDU apdu) {
+    short cmd = KMArray.instance((short) 7);
+    // Arguments
+    short params = KMKeyParameters.expAny();
+    KMArray.cast(cmd).add((short) 0, KMEnum.instance(KMType.PURPOSE));
+    KMArray.cast(cmd).add((short) 1, KMByteBlob.exp()); // key blob
+    KMArray.cast(cmd).add((short) 2, params);
+    short authToken = KMHardwareAuthToken.exp();
+    KMArray.cast(cmd).add((short) 3, authToken); // auth token
+    KMArray.cast(cmd).add((short) 4, KMByteBlob.exp()); // input data
+    KMArray.cast(cmd).add((short) 5, KMByteBlob.exp()); // signature
+    KMArray.cast(cmd).add((short) 6, KMByteBlob.exp()); // confirmation token
+    return receiveIncoming(apdu, cmd);
+  }
+
+  // Begins and finishes an operation on the whole input data in a single command. The operation
+  // uses oneShotOpState instead of a slot in the opTable and is released before the response is
+  // sent, so its handle is never returned to the host. For the same reason keys which require
+  // auth tokens bound to an operation handle cannot be used with this command.
+  private void processOneShotOperationCmd(APDU apdu) {
+    // Receive the incoming request fully from the host into buffer.
+    short cmd = oneShotOperationCmd(apdu);
+    byte[] scratchPad = apdu.getBuffer();
+    short purpose = KMArray.cast(cmd).get((short) 0);
+    data[KEY_BLOB] = KMArray.cast(cmd).get((short) 1);
+    data[KEY_PARAMETERS] = KMArray.cast(cmd).get((short) 2);
+    data[HW_TOKEN] = KMArray.cast(cmd).get((short) 3);
+    data[INPUT_DATA] = KMArray.cast(cmd).get((short) 4);
+    data[SIGNATURE] = KMArray.cast(cmd).get((short) 5);
+    data[CONFIRMATION_TOKEN] = KMArray.cast(cmd).get((short) 6);
+    purpose = KMEnum.cast(purpose).getVal();
+    short algorithm = parseOperationKeyBlob(scratchPad);
+    KMOperationState op = oneShotOpState;
+    op.reset();
+    try {
+      op.setAlgorithm(algorithm);
+      data[OP_HANDLE] = op.getHandle();
+      op.setPurpose((byte) purpose);
+      op.setKeySize(KMByteBlob.cast(data[SECRET]).length());
+      authorizeAndBeginOperation(op, scratchPad);
+      if (op.isAuthPerOperationReqd() || op.isSecureUserIdReqd()) {
+        KMException.throwIt(KMError.INVALID_ARGUMENT);
+      }
+      beginOperation(op);
+      short params = makeBeginOperationParams(op);
+      finishOperation(op, scratchPad);
+      if (data[OUTPUT_DATA] == KMType.INVALID_VALUE) {
+        data[OUTPUT_DATA] = KMByteBlob.instance((short) 0);
+      }
+      // make response
+      short resp = KMArray.instance((short) 3);
+      KMArray.cast(resp).add((short) 0, KMInteger.uint_16(KMError.OK));
+      KMArray.cast(resp).add((short) 1, params);
+      KMArray.cast(resp).add((short) 2, data[OUTPUT_DATA]);
+      sendOutgoing(apdu, resp);
+    } finally {
+      releaseOperation(op);
     }
-    short params = KMKeyParameters.instance(iv);
-    short resp = KMArray.instance((short) 5);
-    KMArray.cast(resp).add((short) 0, KMInteger.uint_16(KMError.OK));
-    KMArray.cast(resp).add((short) 1, params);
-    KMArray.cast(resp).add((short) 2, data[OP_HANDLE]);
-    KMArray.cast(resp).add((short) 3, KMInteger.uint_8(op.getBufferingMode()));
-    KMArray.cast(resp).add((short) 4, KMInteger.uint_16(macLen));
-    sendOutgoing(apdu, resp);
   }
 
   private void authorizePurpose(KMOperationState op) {
@@ -4201,8 +4524,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
     // add scratch pad to key parameters
     updateKeyParameters(scratchPad, index);
-    data[KEY_BLOB] = createKeyBlobInstance(ASYM_KEY_TYPE);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
   }
 
   private void importHmacKey(byte[] scratchPad) {
@@ -4243,7 +4564,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     updateKeyParameters(scratchPad, index);
     // validate HMAC Key parameters
     validateHmacKey();
-    data[KEY_BLOB] = createKeyBlobInstance(SYM_KEY_TYPE);
   }
 
   private void importTDESKey(byte[] scratchPad) {
@@ -4283,7 +4603,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.cast(data[SECRET]).length());
     // update the key parameters list
     updateKeyParameters(scratchPad, index);
-    data[KEY_BLOB] = createKeyBlobInstance(SYM_KEY_TYPE);
   }
 
   private void validateAesKeySize(short keySizeBits) {
@@ -4326,7 +4645,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     updateKeyParameters(scratchPad, index);
     // validate AES Key parameters
     validateAESKey();
-    data[KEY_BLOB] = createKeyBlobInstance(SYM_KEY_TYPE);
   }
 
   private void importRSAKey(byte[] scratchPad) {
@@ -4406,8 +4724,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     updateKeyParameters(scratchPad, index);
     // validate RSA Key parameters
     validateRSAKey(scratchPad);
-    data[KEY_BLOB] = createKeyBlobInstance(ASYM_KEY_TYPE);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
   }
 
   private void updateKeyParameters(byte[] newParams, short len) {
@@ -4676,16 +4992,30 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         data[CERTIFICATE] = KMType.INVALID_VALUE;
         return null;
     }
-    // Certificate Data is converted to cbor and written to the end of the stack.
-    short certData = repository.allocReclaimableMemory(MAX_CERT_SIZE);
+    // Certificate Data is converted to cbor and written to the end of the stack. The
+    // certificate is built in place and never relocated, so give it all the free memory up to
+    // MAX_CERT_SIZE and hand back the unused part once the actual size is known.
+    short certBufLen =
+        (short) (repository.getHeapReclaimIndex() - repository.getHeapIndex() - 1);
+    if (certBufLen > MAX_CERT_SIZE) {
+      certBufLen = MAX_CERT_SIZE;
+    }
+    short certData = repository.allocReclaimableMemory(certBufLen);
     // Leave first 4 bytes for Array header and ByteBlob header.
-    cert.buffer(repository.getHeap(), (short) (certData + 4), (short) (MAX_CERT_SIZE - 4));
+    cert.buffer(
+        repository.getHeap(),
+        (short) (certData + CERT_HEADER_SIZE),
+        (short) (certBufLen - CERT_HEADER_SIZE));
     // Build the certificate - this will sign the cert
     cert.build();
+    // Reclaim the unused memory in front of the certificate so that the key blob and key
+    // characteristics are encoded right before it.
+    short unused = (short) (cert.getCertStart() - CERT_HEADER_SIZE - certData);
+    repository.reclaimMemory(unused);
     // Certificate is now built so the data in the heap starting from heapStart to the current
     // heap index can be reused. So resetting the heap index to heapStart.
     repository.setHeapIndex(heapStart);
-    data[CERTIFICATE] = certData;
+    data[CERTIFICATE] = (short) (certData + unused);
     return cert;
   }
 
@@ -4791,6 +5121,38 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
           data[PUB_KEY] = KMArray.cast(parsedKeyBlob).get(KEY_BLOB_PUB_KEY);
         }
         break;
+      case (short) 4:
+        data[KEY_BLOB_VERSION_DATA_OFFSET] = KMArray.cast(parsedKeyBlob).get(KEY_BLOB_V4_VERSION);
+        data[NONCE] = KMArray.cast(parsedKeyBlob).get(KEY_BLOB_V4_NONCE);
+        data[AUTH_TAG] = KMArray.cast(parsedKeyBlob).get(KEY_BLOB_V4_AUTH_TAG);
+        data[SECRET] = KMArray.cast(parsedKeyBlob).get(KEY_BLOB_V4_SECRET);
+        data[ENCODED_KEY_CHARS] = KMArray.cast(parsedKeyBlob).get(KEY_BLOB_V4_PARAMS);
+        data[PUB_KEY] = KMType.INVALID_VALUE;
+        if (KMArray.cast(parsedKeyBlob).length() == KEY_BLOB_SIZE_V4_WITH_PUB_KEY) {
+          data[PUB_KEY] = KMArray.cast(parsedKeyBlob).get(KEY_BLOB_V4_PUB_KEY);
+        }
+        data[KEY_CHARACTERISTICS] =
+            decoder.decode(
+                KMKeyCharacteristics.exp(),
+                KMByteBlob.cast(data[ENCODED_KEY_CHARS]).getBuffer(),
+                KMByteBlob.cast(data[ENCODED_KEY_CHARS]).getStartOff(),
+                KMByteBlob.cast(data[ENCODED_KEY_CHARS]).length());
+        // Present the V4 KeyBlob in the V3 layout, which is the layout used by the callers to
+        // read the parsed KeyBlob. The custom tags are added once they are re-created from the
+        // HW_PARAMETERS.
+        if (data[PUB_KEY] == KMType.INVALID_VALUE) {
+          data[KEY_BLOB] = KMArray.instance(SYM_KEY_BLOB_SIZE_V2_V3);
+        } else {
+          data[KEY_BLOB] = KMArray.instance(ASYM_KEY_BLOB_SIZE_V2_V3);
+          KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
+        }
+        KMArray.cast(data[KEY_BLOB])
+            .add(KEY_BLOB_VERSION_OFFSET, data[KEY_BLOB_VERSION_DATA_OFFSET]);
+        KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_SECRET, data[SECRET]);
+        KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_NONCE, data[NONCE]);
+        KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_AUTH_TAG, data[AUTH_TAG]);
+        KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PARAMS, data[KEY_CHARACTERISTICS]);
+        break;
       default:
         KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
@@ -4817,6 +5179,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       case 3:
         minArraySize = SYM_KEY_BLOB_SIZE_V2_V3;
         break;
+      case 4:
+        minArraySize = KEY_BLOB_SIZE_V4;
+        break;
       default:
         KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
@@ -4837,6 +5202,16 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     data[HW_PARAMETERS] = KMKeyParameters.makeHwEnforced(data[SB_PARAMETERS], data[TEE_PARAMETERS]);
 
     data[HIDDEN_PARAMETERS] = KMKeyParameters.makeHidden(appId, appData, data[ROT], scratchPad);
+    if (version == KEYBLOB_CURRENT_VERSION) {
+      // Only RSA V4 KeyBlobs carry the public key, and only then is it authenticated by
+      // deriveKey, so the KeyBlob size must match the algorithm.
+      if (isPubKeyInKeyBlob(data[HW_PARAMETERS]) != (data[PUB_KEY] != KMType.INVALID_VALUE)) {
+        KMException.throwIt(KMError.INVALID_KEY_BLOB);
+      }
+      // Custom tags are not stored in the V4 KeyBlob, re-create them from the HW_PARAMETERS.
+      data[CUSTOM_TAGS] = KMKeyParameters.makeCustomTags(data[HW_PARAMETERS], scratchPad);
+      KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_CUSTOM_TAGS, data[CUSTOM_TAGS]);
+    }
     // Decrypt Secret and verify auth tag
     decryptSecret(scratchPad, version);
     short keyBlobSecretOff = 0;
@@ -4878,6 +5253,19 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         // ]
         keyBlobSecretOff = KEY_BLOB_SECRET;
         break;
+      case 4:
+        // V4 KeyBlob
+        // KEY_BLOB = [
+        //     VERSION,
+        //     NONCE,
+        //     AUTH_TAG,
+        //     SECRET,
+        //     ENCODED_KEY_CHARACTERISTICS,
+        //     PUBKEY ( Only for RSA Keys)
+        // ]
+        // The parsed V4 KeyBlob is presented in the V3 layout.
+        keyBlobSecretOff = KEY_BLOB_SECRET;
+        break;
       default:
         KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
@@ -4906,10 +5294,14 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     short authDataLen = 0;
     byte[] authDataBuff = null;
     switch (version) {
-      case 3:
+      case 4:
         len = deriveKey(scratchPad);
         break;
 
+      case 3:
+        len = deriveKeyV3(scratchPad);
+        break;
+
       case 2:
       case 1:
       case 0:
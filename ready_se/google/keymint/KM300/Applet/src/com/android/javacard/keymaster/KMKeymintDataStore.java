@@ -110,6 +110,8 @@ public class KMKeymintDataStore implements KMUpgradable {
   private KMKey rkpMacKey;
   private byte[] oemRootPublicKey;
   private short provisionStatus;
+  // Incremented whenever the data reported in the RKP DeviceInfo changes.
+  private short deviceInfoGeneration;
 
   public KMKeymintDataStore(KMSEProvider provider, KMRepository repo) {
     seProvider = provider;
@@ -299,6 +301,7 @@ public class KMKeymintDataStore implements KMUpgradable {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     writeDataEntry(BOOT_OS_VERSION, buf, start, len);
+    invalidateDeviceInfo();
   }
 
   public void setVendorPatchLevel(byte[] buf, short start, short len) {
@@ -306,6 +309,20 @@ public class KMKeymintDataStore implements KMUpgradable {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     writeDataEntry(VENDOR_PATCH_LEVEL, buf, start, len);
+    invalidateDeviceInfo();
+  }
+
+  /**
+   * Returns the generation of the data reported in the RKP DeviceInfo i.e. attestation ids, boot
+   * parameters, patch levels and secure boot mode. The generation changes whenever any of them is
+   * updated, which lets the RKP implementation reuse the encoded DeviceInfo until then.
+   */
+  public short getDeviceInfoGeneration() {
+    return deviceInfoGeneration;
+  }
+
+  public void invalidateDeviceInfo() {
+    deviceInfoGeneration++;
   }
 
   private void writeBoolean(short id, boolean flag) {
@@ -368,6 +385,7 @@ public class KMKeymintDataStore implements KMUpgradable {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     writeDataEntry(BOOT_OS_PATCH_LEVEL, buf, start, len);
+    invalidateDeviceInfo();
   }
 
   private boolean isAuthTagSlotAvailable(short tagId, byte[] buf, short offset) {
@@ -623,6 +641,42 @@ public class KMKeymintDataStore implements KMUpgradable {
   }
 
   public short getAttestationId(short tag, byte[] buffer, short start) {
+    byte[] attestId = getAttestationIdBuffer(tag);
+    if (attestId == null) {
+      return (short) 0;
+    }
+    Util.arrayCopyNonAtomic(attestId, (short) 0, buffer, start, (short) attestId.length);
+    return (short) attestId.length;
+  }
+
+  /**
+   * Compares the given value with the provisioned attestation id in place, without copying the
+   * provisioned id out of the persistent memory.
+   *
+   * @param tag attestation id tag.
+   * @param buffer buffer containing the value to compare.
+   * @param start start offset of the value.
+   * @param length length of the value.
+   * @return true if the value matches, false if the SECOND_IMEI id is not provisioned and can be
+   *     ignored. Throws CANNOT_ATTEST_IDS on mismatch or if the id is not provisioned. An empty
+   *     provisioned id counts as not provisioned.
+   */
+  public boolean compareAttestationId(short tag, byte[] buffer, short start, short length) {
+    byte[] attestId = getAttestationIdBuffer(tag);
+    if (attestId == null || attestId.length == 0) {
+      if (isIgnoredAttestationId(tag)) {
+        return false;
+      }
+      KMException.throwIt(KMError.CANNOT_ATTEST_IDS);
+    }
+    if (attestId.length != length
+        || Util.arrayCompare(attestId, (short) 0, buffer, start, length) != 0) {
+      KMException.throwIt(KMError.CANNOT_ATTEST_IDS);
+    }
+    return true;
+  }
+
+  private byte[] getAttestationIdBuffer(short tag) {
     byte[] attestId = null;
     switch (tag) {
         // Attestation Id Brand
@@ -663,16 +717,19 @@ public class KMKeymintDataStore implements KMUpgradable {
         break;
     }
     if (attestId == null) {
-      /* Ignore the SECOND_IMEI tag if the previous Applet's KeyMint version is less than 3.0 and
-       * no SECOND_IMEI is provisioned.
-       */
-      if (kmDataStore.ignoreSecondImei && tag == KMType.ATTESTATION_ID_SECOND_IMEI) {
-        return (short) 0;
+      if (isIgnoredAttestationId(tag)) {
+        return null;
       }
       KMException.throwIt(KMError.CANNOT_ATTEST_IDS);
     }
-    Util.arrayCopyNonAtomic(attestId, (short) 0, buffer, start, (short) attestId.length);
-    return (short) attestId.length;
+    return attestId;
+  }
+
+  /* Ignore the SECOND_IMEI tag if the previous Applet's KeyMint version is less than 3.0 and
+   * no SECOND_IMEI is provisioned.
+   */
+  private boolean isIgnoredAttestationId(short tag) {
+    return kmDataStore.ignoreSecondImei && tag == KMType.ATTESTATION_ID_SECOND_IMEI;
   }
 
   public void setAttestationId(short tag, byte[] buffer, short start, short length) {
@@ -741,6 +798,7 @@ public class KMKeymintDataStore implements KMUpgradable {
         JCSystem.commitTransaction();
         break;
     }
+    invalidateDeviceInfo();
   }
 
   public void deleteAttestationIds() {
@@ -753,6 +811,7 @@ public class KMKeymintDataStore implements KMUpgradable {
     attIdMeId = null;
     attIdManufacturer = null;
     attIdModel = null;
+    invalidateDeviceInfo();
     // Trigger garbage collection.
     JCSystem.requestObjectDeletion();
   }
@@ -779,6 +838,7 @@ public class KMKeymintDataStore implements KMUpgradable {
 
   public void setBootState(short state) {
     bootState = state;
+    invalidateDeviceInfo();
   }
 
   public boolean isDeviceBootLocked() {
@@ -800,6 +860,7 @@ public class KMKeymintDataStore implements KMUpgradable {
       KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
     Util.arrayCopy(buffer, start, verifiedHash, (short) 0, (short) 32);
+    invalidateDeviceInfo();
   }
 
   public void setBootKey(byte[] buffer, short start, short length) {
@@ -814,6 +875,7 @@ public class KMKeymintDataStore implements KMUpgradable {
 
   public void setDeviceLocked(boolean state) {
     deviceBootLocked = state;
+    invalidateDeviceInfo();
   }
 
   public void setBootPatchLevel(byte[] buffer, short start, short length) {
@@ -824,6 +886,7 @@ public class KMKeymintDataStore implements KMUpgradable {
       KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
     Util.arrayCopy(buffer, start, bootPatchLevel, (short) 0, (short) length);
+    invalidateDeviceInfo();
   }
 
   public void setChallenge(byte[] buf, short start, short length) {
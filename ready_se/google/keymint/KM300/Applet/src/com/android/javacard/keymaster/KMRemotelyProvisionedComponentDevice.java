@@ -123,6 +123,16 @@ public class KMRemotelyProvisionedComponentDevice {
   private static final byte RKP_VERSION = 0x03;
   // RKP supportedNumKeysInCsr
   private static final byte MIN_SUPPORTED_NUM_KEYS_IN_CSR = 20;
+  // The estimated heap consumed by each key of a batched updateKeys command. It covers the
+  // incoming CoseMac0, its decoded form and the encoded CoseKey in the response.
+  private static final short UPDATE_KEY_HEAP_COST = 512;
+  // Maximum number of key pairs generated by one generateRkpKeys command. This keeps the array
+  // header of the pairs in a single byte.
+  private static final byte MAX_RKP_KEY_BATCH_SIZE = 23;
+  // Size of the heap region holding the encoded generateRkpKeys response.
+  private static final short RKP_KEYS_RESPONSE_BUF_SIZE = 4096;
+  // Margin added to the size of the last encoded key pair when checking if the next one fits.
+  private static final byte RKP_KEY_PAIR_SIZE_MARGIN = 16;
   // The CsrPayload CDDL Schema version.
   private static final byte CSR_PAYLOAD_CDDL_SCHEMA_VERSION = 3;
   // Boot params
@@ -139,8 +149,9 @@ public class KMRemotelyProvisionedComponentDevice {
   private static final byte TINY_PAYLOAD = 0x17;
   // Denotes COSE Integer with short lengths.
   private static final short SHORT_PAYLOAD = 0x100;
-  // The maximum possible output buffer.
-  private static final short MAX_SEND_DATA = 512;
+  // Size of the response fields around a cert chain chunk: array header, status, byte string
+  // header and the more data flag.
+  private static final byte CERT_CHUNK_RESPONSE_OVERHEAD = 8;
   // The string "Google Strongbox KeyMint 3" in hex.
   private static final byte[] uniqueId = {
     0x47, 0x6f, 0x6f, 0x67, 0x6c, 0x65, 0x20, 0x53, 0x74, 0x72, 0x6f, 0x6e, 0x67, 0x62, 0x6f, 0x78,
@@ -211,6 +222,11 @@ public class KMRemotelyProvisionedComponentDevice {
   private Object[] operation;
   // Holds the current index in the data table.
   private short[] dataIndex;
+  // Canonical encoding of the DeviceInfo map reused across CSRs. It is valid for the DeviceInfo
+  // generation of the KMKeymintDataStore it was built with and if its length is not zero.
+  private byte[] deviceInfoCache;
+  private short deviceInfoCacheLen;
+  private short deviceInfoCacheGeneration;
 
   public KMRemotelyProvisionedComponentDevice(
       KMEncoder encoder,
@@ -227,6 +243,7 @@ public class KMRemotelyProvisionedComponentDevice {
     data = JCSystem.makeTransientByteArray(DATA_SIZE, JCSystem.CLEAR_ON_RESET);
     operation = JCSystem.makeTransientObjectArray((short) 1, JCSystem.CLEAR_ON_RESET);
     dataIndex = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+    deviceInfoCache = new byte[MAX_ENCODED_BUF_SIZE];
     // Initialize RKP mac key
     if (!seProvider.isUpgrading()) {
       short offset = repository.allocReclaimableMemory((short) RKP_MAC_KEY_SIZE);
@@ -313,6 +330,85 @@ public class KMRemotelyProvisionedComponentDevice {
     KMKeymasterApplet.sendOutgoing(apdu, arr);
   }
 
+  /**
+   * This is the batched variant of processGenerateRkpKey.
+   * Input:
+   *   Number of key pairs requested.
+   * Process:
+   *   1) Generate the key pairs one after the other with the same key parameters. The working heap
+   *      of each key is released after its output is encoded, so the number of pairs is only
+   *      limited by the size of the response.
+   *   2) Stop when the requested number, MAX_RKP_KEY_BATCH_SIZE or the response buffer is reached.
+   * Response:
+   *   OK
+   *   Array of [CoseMac0, KeyBlob] pairs. It can be shorter than the requested number.
+   * @param apdu Input apdu.
+   */
+  public void processGenerateRkpKeys(APDU apdu) {
+    short arr = KMArray.instance((short) 1);
+    KMArray.cast(arr).add((short) 0, KMInteger.exp());
+    arr = KMKeymasterApplet.receiveIncoming(apdu, arr);
+    short count = KMInteger.cast(KMArray.cast(arr).get((short) 0)).getShort();
+    if (count <= 0) {
+      KMException.throwIt(KMError.INVALID_ARGUMENT);
+    }
+    if (count > MAX_RKP_KEY_BATCH_SIZE) {
+      count = MAX_RKP_KEY_BATCH_SIZE;
+    }
+    // Re-purpose the apdu buffer as scratch pad.
+    byte[] scratchPad = apdu.getBuffer();
+    byte[] heap = repository.getHeap();
+    short keyParams = getEcAttestKeyParameters();
+    // The response is encoded manually at the end of the heap.
+    // response = [
+    //     errorCode : uint
+    //     pairs : [+ [coseMac0 : bstr, keyBlob : bstr]]
+    // ]
+    short respStart = repository.allocReclaimableMemory(RKP_KEYS_RESPONSE_BUF_SIZE);
+    short respEnd = (short) (respStart + RKP_KEYS_RESPONSE_BUF_SIZE);
+    short respIndex = (short) (respStart + 3);
+    short heapIndex = repository.getHeapIndex();
+    short pairLen = 0;
+    short index = 0;
+    while (index < count
+        && (short) (respEnd - respIndex) > (short) (pairLen + RKP_KEY_PAIR_SIZE_MARGIN)) {
+      KMKeymasterApplet.generateRkpKey(scratchPad, keyParams);
+      short coseMac0 = constructCoseMacForRkpKey(scratchPad, KMKeymasterApplet.getPubKey());
+      short keyBlob = KMKeymasterApplet.getPivateKey();
+      short coseMac0Len = KMByteBlob.cast(coseMac0).length();
+      short keyBlobLen = KMByteBlob.cast(keyBlob).length();
+      pairLen =
+          (short)
+              (1
+                  + encoder.getEncodedBytesLength(coseMac0Len)
+                  + coseMac0Len
+                  + encoder.getEncodedBytesLength(keyBlobLen)
+                  + keyBlobLen);
+      if (pairLen >= (short) (respEnd - respIndex)) {
+        break;
+      }
+      encoder.beginStream(heap, respIndex, respEnd);
+      encoder.streamArrayHeader((short) 2);
+      encoder.streamByteBlob(
+          KMByteBlob.cast(coseMac0).getBuffer(),
+          KMByteBlob.cast(coseMac0).getStartOff(),
+          coseMac0Len);
+      encoder.streamByteBlob(
+          KMByteBlob.cast(keyBlob).getBuffer(), KMByteBlob.cast(keyBlob).getStartOff(), keyBlobLen);
+      respIndex = encoder.getStreamOffset();
+      // Release the heap used by this key.
+      repository.setHeapIndex(heapIndex);
+      index++;
+    }
+    if (index == 0) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
+    }
+    heap[respStart] = (byte) 0x82; // Array of 2 elements
+    heap[(short) (respStart + 1)] = (byte) 0x00; // KMError.OK
+    heap[(short) (respStart + 2)] = (byte) (0x80 | index); // Array of generated pairs
+    KMKeymasterApplet.sendOutgoing(apdu, heap, respStart, (short) (respIndex - respStart));
+  }
+
   public short getHeaderLen(short length) {
     if (length <= TINY_PAYLOAD) {
       return (short) 1;
@@ -328,7 +424,7 @@ public class KMRemotelyProvisionedComponentDevice {
       short coseKeysCount,
       short totalCoseKeysLen,
       short challengeByteBlob,
-      short deviceInfo,
+      short encodedDeviceInfo,
       short versionPtr,
       short certTypePtr) {
     // Initialize ECDSA operation
@@ -341,7 +437,7 @@ public class KMRemotelyProvisionedComponentDevice {
       KMException.throwIt(KMError.STATUS_FAILED);
     }
     short challengeHeaderLen = encoder.getEncodedBytesLength(challengeLen);
-    short deviceInfoLen = encoder.getEncodedLength(deviceInfo);
+    short deviceInfoLen = KMByteBlob.cast(encodedDeviceInfo).length();
 
     // Calculate the keysToSign length
     // keysToSignLen = coseKeysArrayHeaderLen + totalCoseKeysLen
@@ -392,11 +488,16 @@ public class KMRemotelyProvisionedComponentDevice {
     protectedHeaders = KMByteBlob.instance(scratchPad, (short) 0, protectedHeaders);
 
     // Construct partial signature
-    short signStructure =
-        KMCose.constructCoseSignStructure(protectedHeaders, aad, KMType.INVALID_VALUE);
     short partialSignStructureLen =
-        KMKeymasterApplet.encodeToApduBuffer(
-            signStructure, scratchPad, (short) 0, KMKeymasterApplet.MAX_COSE_BUF_SIZE);
+        KMCose.encodeCoseStructure(
+            encoder,
+            KMCose.SIGNATURE1_CONTEXT,
+            protectedHeaders,
+            aad,
+            KMType.INVALID_VALUE,
+            scratchPad,
+            (short) 0,
+            KMKeymasterApplet.MAX_COSE_BUF_SIZE);
     ((KMOperation) operation[0]).update(scratchPad, (short) 0, partialSignStructureLen);
 
     // Add payload Byte Header
@@ -419,10 +520,16 @@ public class KMRemotelyProvisionedComponentDevice {
     arr = KMArray.instance((short) 4);
     KMArray.cast(arr).add((short) 0, versionPtr);
     KMArray.cast(arr).add((short) 1, certTypePtr);
-    KMArray.cast(arr).add((short) 2, deviceInfo);
+    KMArray.cast(arr).add((short) 2, KMType.INVALID_VALUE);
     KMArray.cast(arr).add((short) 3, KMType.INVALID_VALUE);
     short partialCsrPayloadArrayLen = encoder.encode(arr, heap, heapIndex, prevReclaimIndex);
     ((KMOperation) operation[0]).update(heap, heapIndex, partialCsrPayloadArrayLen);
+    // Already encoded device info
+    ((KMOperation) operation[0])
+        .update(
+            KMByteBlob.cast(encodedDeviceInfo).getBuffer(),
+            KMByteBlob.cast(encodedDeviceInfo).getStartOff(),
+            deviceInfoLen);
 
     // Encode keysToSign Array Header length
     short keysToSignArrayHeaderLen =
@@ -463,7 +570,7 @@ public class KMRemotelyProvisionedComponentDevice {
       arr = KMKeymasterApplet.receiveIncoming(apdu, arr);
       // Re-purpose the apdu buffer as scratch pad.
       byte[] scratchPad = apdu.getBuffer();
-      short deviceInfo = createDeviceInfo(scratchPad);
+      short encodedDeviceInfo = getEncodedDeviceInfo(scratchPad);
       short versionPtr = KMInteger.uint_16(CSR_PAYLOAD_CDDL_SCHEMA_VERSION);
       short certTypePtr =
           KMTextString.instance(DI_CERT_TYPE, (short) 0, (short) DI_CERT_TYPE.length);
@@ -473,7 +580,7 @@ public class KMRemotelyProvisionedComponentDevice {
           KMInteger.cast(KMArray.cast(arr).get((short) 0)).getShort(),
           KMInteger.cast(KMArray.cast(arr).get((short) 1)).getShort(),
           KMArray.cast(arr).get((short) 2),
-          deviceInfo,
+          encodedDeviceInfo,
           versionPtr,
           certTypePtr);
       // Store the total keys in data table.
@@ -486,14 +593,6 @@ public class KMRemotelyProvisionedComponentDevice {
       if (0 == KMInteger.cast(KMArray.cast(arr).get((short) 0)).getShort()) {
         updateState(UPDATE);
       }
-      short prevReclaimIndex = repository.getHeapReclaimIndex();
-      short offset = repository.allocReclaimableMemory(MAX_ENCODED_BUF_SIZE);
-      short length =
-          encoder.encode(
-              deviceInfo, repository.getHeap(), offset, prevReclaimIndex, MAX_ENCODED_BUF_SIZE);
-      short encodedDeviceInfo = KMByteBlob.instance(repository.getHeap(), offset, length);
-      // release memory
-      repository.reclaimMemory(MAX_ENCODED_BUF_SIZE);
       // Send response.
       short array = KMArray.instance((short) 4);
       KMArray.cast(array).add((short) 0, KMInteger.uint_16(KMError.OK));
@@ -529,38 +628,11 @@ public class KMRemotelyProvisionedComponentDevice {
     try {
       // The prior state can be BEGIN or UPDATE
       validateState((byte) (BEGIN | UPDATE));
-      validateKeysToSignCount();
-      short headers = KMCoseHeaders.exp();
-      short arrInst = KMArray.instance((short) 4);
-      short byteBlobExp = KMByteBlob.exp();
-      KMArray.cast(arrInst).add((short) 0, byteBlobExp);
-      KMArray.cast(arrInst).add((short) 1, headers);
-      KMArray.cast(arrInst).add((short) 2, byteBlobExp);
-      KMArray.cast(arrInst).add((short) 3, byteBlobExp);
-      short arr = KMArray.exp(arrInst);
+      short arr = KMArray.exp(getCoseMac0Exp());
       arr = KMKeymasterApplet.receiveIncoming(apdu, arr);
-      arrInst = KMArray.cast(arr).get((short) 0);
       // Re-purpose the apdu buffer as scratch pad.
       byte[] scratchPad = apdu.getBuffer();
-
-      // Validate and extract the CoseKey from CoseMac0 message.
-      short coseKey = validateAndExtractPublicKey(arrInst, scratchPad);
-      // Encode CoseKey
-      short length =
-          KMKeymasterApplet.encodeToApduBuffer(
-              coseKey, scratchPad, (short) 0, KMKeymasterApplet.MAX_COSE_BUF_SIZE);
-      // Do ECDSA update with input as encoded CoseKey.
-      ((KMOperation) operation[0]).update(scratchPad, (short) 0, length);
-      short encodedCoseKey = KMByteBlob.instance(scratchPad, (short) 0, length);
-
-      // Increment the count each time this function gets executed.
-      // Store the count in data table.
-      short dataEntryIndex = getEntry(KEYS_TO_SIGN_COUNT);
-      if (dataEntryIndex == 0) {
-        dataEntryIndex = createEntry(KEYS_TO_SIGN_COUNT, SHORT_SIZE);
-      }
-      length = Util.getShort(data, dataEntryIndex);
-      Util.setShort(data, dataEntryIndex, ++length);
+      short encodedCoseKey = updateKey(KMArray.cast(arr).get((short) 0), scratchPad);
       // Update the csr state
       updateState(UPDATE);
       // Send response.
@@ -575,6 +647,103 @@ public class KMRemotelyProvisionedComponentDevice {
     }
   }
 
+  /**
+   * This is the batched variant of processUpdateKey and can be called in a loop instead of it.
+   * Input:
+   *   Array of CoseMac0 each containing an RKP Key
+   * Process:
+   *   1) Validate the phase of generateCSR. Prior state should be either BEGIN or UPDATE.
+   *   2) For each CoseMac0 do the steps 2 to 5 of processUpdateKey.
+   *   3) Update the phase of the generateCSR function to UPDATE.
+   * Response:
+   *   1) Send OK response.
+   *   2) Array of encoded Cose Keys in the order of the input.
+   *   3) Maximum number of keys the next command can carry.
+   * @param apdu Input apdu
+   */
+  public void processUpdateKeys(APDU apdu) throws Exception {
+    try {
+      // The prior state can be BEGIN or UPDATE
+      validateState((byte) (BEGIN | UPDATE));
+      short maxBatchSize =
+          (short) ((short) (repository.getHeapReclaimIndex() - repository.getHeapIndex())
+              / UPDATE_KEY_HEAP_COST);
+      short arr = KMArray.instance((short) 1);
+      KMArray.cast(arr).add((short) 0, KMArray.exp(getCoseMac0Exp()));
+      arr = KMKeymasterApplet.receiveIncoming(apdu, arr);
+      short keys = KMArray.cast(arr).get((short) 0);
+      short count = KMArray.cast(keys).length();
+      if (count == 0) {
+        KMException.throwIt(KMError.INVALID_ARGUMENT);
+      }
+      // Re-purpose the apdu buffer as scratch pad.
+      byte[] scratchPad = apdu.getBuffer();
+      short encodedCoseKeys = KMArray.instance(count);
+      short index = 0;
+      while (index < count) {
+        KMArray.cast(encodedCoseKeys)
+            .add(index, updateKey(KMArray.cast(keys).get(index), scratchPad));
+        index++;
+      }
+      // Update the csr state
+      updateState(UPDATE);
+      // The next batch is limited by the free heap and the remaining number of keys.
+      short remainingKeys =
+          (short)
+              (Util.getShort(data, getEntry(TOTAL_KEYS_TO_SIGN))
+                  - Util.getShort(data, getEntry(KEYS_TO_SIGN_COUNT)));
+      if (maxBatchSize > remainingKeys) {
+        maxBatchSize = remainingKeys;
+      }
+      // Send response.
+      short array = KMArray.instance((short) 3);
+      KMArray.cast(array).add((short) 0, KMInteger.uint_16(KMError.OK));
+      KMArray.cast(array).add((short) 1, encodedCoseKeys);
+      KMArray.cast(array).add((short) 2, KMInteger.uint_16(maxBatchSize));
+      KMKeymasterApplet.sendOutgoing(apdu, array);
+    } catch (Exception e) {
+      clearDataTable();
+      releaseOperation();
+      throw e;
+    }
+  }
+
+  private short getCoseMac0Exp() {
+    short headers = KMCoseHeaders.exp();
+    short arrInst = KMArray.instance((short) 4);
+    short byteBlobExp = KMByteBlob.exp();
+    KMArray.cast(arrInst).add((short) 0, byteBlobExp);
+    KMArray.cast(arrInst).add((short) 1, headers);
+    KMArray.cast(arrInst).add((short) 2, byteBlobExp);
+    KMArray.cast(arrInst).add((short) 3, byteBlobExp);
+    return arrInst;
+  }
+
+  // Validates the CoseMac0, absorbs the extracted CoseKey into the CSR signature and returns the
+  // encoded CoseKey.
+  private short updateKey(short coseMac0, byte[] scratchPad) {
+    validateKeysToSignCount();
+    // Validate and extract the CoseKey from CoseMac0 message.
+    short coseKey = validateAndExtractPublicKey(coseMac0, scratchPad);
+    // Encode CoseKey
+    short length =
+        KMKeymasterApplet.encodeToApduBuffer(
+            coseKey, scratchPad, (short) 0, KMKeymasterApplet.MAX_COSE_BUF_SIZE);
+    // Do ECDSA update with input as encoded CoseKey.
+    ((KMOperation) operation[0]).update(scratchPad, (short) 0, length);
+    short encodedCoseKey = KMByteBlob.instance(scratchPad, (short) 0, length);
+
+    // Increment the count each time this function gets executed.
+    // Store the count in data table.
+    short dataEntryIndex = getEntry(KEYS_TO_SIGN_COUNT);
+    if (dataEntryIndex == 0) {
+      dataEntryIndex = createEntry(KEYS_TO_SIGN_COUNT, SHORT_SIZE);
+    }
+    length = Util.getShort(data, dataEntryIndex);
+    Util.setShort(data, dataEntryIndex, ++length);
+    return encodedCoseKey;
+  }
+
   /**
    * This is the third command of generateCSR.
    * Input:
@@ -651,12 +820,14 @@ public class KMRemotelyProvisionedComponentDevice {
 
   /**
    * This is the fourth command of generateCSR. This command is called multiple times by the
-   * HAL until complete UdsCerts are received. On each call, a chunk of 512 bytes data is sent.
+   * HAL until complete UdsCerts are received. On each call, a chunk of the size the response can
+   * hold is sent.
    * Input:
    *   No input data.
    * Process:
    *   1) Validate the phase of generateCSR. Prior state should be FINISH.
-   *   2) checks if Uds cert is present and sends the certs in chunks of 512 bytes.
+   *   2) checks if Uds cert is present and sends the certs in chunks sized from the response length
+   *      expected by the HAL. An extended length request receives the whole chain at once.
    *   3) Update the phase of the generateCSR function to GET_UDS_CERTS_RESPONSE. In-case of
    *     a) No Uds certs present and
    *     b) When last chunk of Uds cert is sent
@@ -670,17 +841,18 @@ public class KMRemotelyProvisionedComponentDevice {
     try {
       // The prior state should be FINISH.
       validateState((byte) (FINISH));
-      short len;
+      short data;
       byte moreData;
-      byte[] scratchPad = apdu.getBuffer();
+      short chunkSize = getCertChunkSize(KMKeymasterApplet.setOutgoing(apdu));
       if (!isUdsCertsChainPresent()) {
         createEntry(RESPONSE_PROCESSING_STATE, BYTE_SIZE);
         updateState(GET_UDS_CERTS_RESPONSE);
         moreData = NO_DATA;
-        scratchPad[0] = (byte) 0xA0; // CBOR Encoded empty map is A0
-        len = 1;
+        data = KMByteBlob.instance((short) 1);
+        // CBOR Encoded empty map is A0
+        KMByteBlob.cast(data).add((short) 0, (byte) 0xA0);
       } else {
-        len = processUdsCertificateChain(scratchPad);
+        data = processUdsCertificateChain(chunkSize);
         moreData = MORE_DATA;
         byte state = getCurrentOutputProcessingState();
         switch (state) {
@@ -695,7 +867,6 @@ public class KMRemotelyProvisionedComponentDevice {
             KMException.throwIt(KMError.INVALID_STATE);
         }
       }
-      short data = KMByteBlob.instance(scratchPad, (short) 0, len);
       short arr = KMArray.instance((short) 3);
       KMArray.cast(arr).add((short) 0, KMInteger.uint_16(KMError.OK));
       KMArray.cast(arr).add((short) 1, data);
@@ -710,12 +881,14 @@ public class KMRemotelyProvisionedComponentDevice {
 
   /**
    * This is the fifth command of generateCSR. This command is called multiple times by the
-   * HAL until complete Dice cert chain is received. On each call, a chunk of 512 bytes data is sent.
+   * HAL until complete Dice cert chain is received. On each call, a chunk of the size the response
+   * can hold is sent.
    * Input:
    *   No input data.
    * Process:
    *   1) Validate the phase of generateCSR. Prior state should be GET_UDS_CERTS_RESPONSE.
-   *   2) Sends the Dice cert chain data in chunks of 512 bytes.
+   *   2) Sends the Dice cert chain data in chunks sized from the response length expected by the
+   *      HAL.
    *
    *   After receiving a complete dice cert chain in HAL, Hal constructs the final CSR using the output data
    *   returned from all the 5 generateCSR commands in Applet.
@@ -730,9 +903,7 @@ public class KMRemotelyProvisionedComponentDevice {
     try {
       // The prior state should be GET_UDS_CERTS_RESPONSE.
       validateState((byte) (GET_UDS_CERTS_RESPONSE));
-      byte[] scratchPad = apdu.getBuffer();
-      short len = 0;
-      len = processDiceCertChain(scratchPad);
+      short data = processDiceCertChain(getCertChunkSize(KMKeymasterApplet.setOutgoing(apdu)));
       byte moreData = MORE_DATA;
       byte state = getCurrentOutputProcessingState();
       switch (state) {
@@ -746,7 +917,6 @@ public class KMRemotelyProvisionedComponentDevice {
         default:
           KMException.throwIt(KMError.INVALID_STATE);
       }
-      short data = KMByteBlob.instance(scratchPad, (short) 0, len);
       short arr = KMArray.instance((short) 3);
       KMArray.cast(arr).add((short) 0, KMInteger.uint_16(KMError.OK));
       KMArray.cast(arr).add((short) 1, data);
@@ -780,6 +950,12 @@ public class KMRemotelyProvisionedComponentDevice {
       case KMKeymasterApplet.INS_UPDATE_KEY_CMD:
         processUpdateKey(apdu);
         break;
+      case KMKeymasterApplet.INS_UPDATE_KEYS_CMD:
+        processUpdateKeys(apdu);
+        break;
+      case KMKeymasterApplet.INS_GENERATE_RKP_KEYS_CMD:
+        processGenerateRkpKeys(apdu);
+        break;
       case KMKeymasterApplet.INS_FINISH_SEND_DATA_CMD:
         processFinishSendData(apdu);
         break;
@@ -863,14 +1039,16 @@ public class KMRemotelyProvisionedComponentDevice {
     }
 
     // Compute CoseMac Structure and compare the macs.
-    short macStructure =
-        KMCose.constructCoseMacStructure(
+    short encodedLen =
+        KMCose.encodeCoseStructure(
+            encoder,
+            KMCose.MAC_CONTEXT,
             KMArray.cast(coseMacPtr).get(KMCose.COSE_MAC0_PROTECTED_PARAMS_OFFSET),
             KMByteBlob.instance((short) 0),
-            KMArray.cast(coseMacPtr).get(KMCose.COSE_MAC0_PAYLOAD_OFFSET));
-    short encodedLen =
-        KMKeymasterApplet.encodeToApduBuffer(
-            macStructure, scratchPad, (short) 0, KMKeymasterApplet.MAX_COSE_BUF_SIZE);
+            KMArray.cast(coseMacPtr).get(KMCose.COSE_MAC0_PAYLOAD_OFFSET),
+            scratchPad,
+            (short) 0,
+            KMKeymasterApplet.MAX_COSE_BUF_SIZE);
 
     short hmacLen = rkpHmacSign(scratchPad, (short) 0, encodedLen, scratchPad, encodedLen);
 
@@ -919,6 +1097,30 @@ public class KMRemotelyProvisionedComponentDevice {
     data[dataEntryIndex] = state;
   }
 
+  /*
+   * Returns the canonical encoding of the DeviceInfo. The encoding is cached and rebuilt only when
+   * the DeviceInfo generation of the KMKeymintDataStore has changed since it was built.
+   */
+  private short getEncodedDeviceInfo(byte[] scratchpad) {
+    short generation = storeDataInst.getDeviceInfoGeneration();
+    if (deviceInfoCacheLen == 0 || deviceInfoCacheGeneration != generation) {
+      short deviceInfo = createDeviceInfo(scratchpad);
+      short prevReclaimIndex = repository.getHeapReclaimIndex();
+      short offset = repository.allocReclaimableMemory(MAX_ENCODED_BUF_SIZE);
+      short length =
+          encoder.encode(
+              deviceInfo, repository.getHeap(), offset, prevReclaimIndex, MAX_ENCODED_BUF_SIZE);
+      // The length is written last so that an interrupted update leaves the cache invalid.
+      deviceInfoCacheLen = 0;
+      Util.arrayCopyNonAtomic(repository.getHeap(), offset, deviceInfoCache, (short) 0, length);
+      deviceInfoCacheGeneration = generation;
+      deviceInfoCacheLen = length;
+      // release memory
+      repository.reclaimMemory(MAX_ENCODED_BUF_SIZE);
+    }
+    return KMByteBlob.instance(deviceInfoCache, (short) 0, deviceInfoCacheLen);
+  }
+
   /*
    * Create DeviceInfo structure as specified in the RKPV3.0 specification.
    */
@@ -1151,22 +1353,32 @@ public class KMRemotelyProvisionedComponentDevice {
     Util.setShort(data, dataEntryIndex, processedLen);
   }
 
-  private short processUdsCertificateChain(byte[] scratchPad) {
+  // Returns the size of the cert chain chunk which fits in a response of the given length. The
+  // host asks for the response length per command, so short apdus are served in chunks while an
+  // extended length apdu gets the remaining chain in a single response.
+  private short getCertChunkSize(short expectedLen) {
+    short chunkSize = (short) (expectedLen - CERT_CHUNK_RESPONSE_OVERHEAD);
+    if (chunkSize <= 0) {
+      KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+    }
+    return chunkSize;
+  }
+
+  private short processUdsCertificateChain(short chunkSize) {
     byte[] persistedData = storeDataInst.getUdsCertChain();
     short totalUccLen = Util.getShort(persistedData, (short) 0);
     createEntry(RESPONSE_PROCESSING_STATE, BYTE_SIZE);
     if (totalUccLen == 0) {
       // No Uds certificate chain present.
       updateOutputProcessingState(PROCESSING_UDS_CERTS_COMPLETE);
-      return 0;
+      return KMByteBlob.instance((short) 0);
     }
     short processedLen = getResponseProcessedLength(UDS_PROCESSED_LENGTH);
     short lengthToSend = (short) (totalUccLen - processedLen);
-    if (lengthToSend > MAX_SEND_DATA) {
-      lengthToSend = MAX_SEND_DATA;
+    if (lengthToSend > chunkSize) {
+      lengthToSend = chunkSize;
     }
-    Util.arrayCopyNonAtomic(
-        persistedData, (short) (2 + processedLen), scratchPad, (short) 0, lengthToSend);
+    short chunk = KMByteBlob.instance(persistedData, (short) (2 + processedLen), lengthToSend);
 
     processedLen += lengthToSend;
     updateResponseProcessedLength(UDS_PROCESSED_LENGTH, processedLen);
@@ -1175,25 +1387,24 @@ public class KMRemotelyProvisionedComponentDevice {
         (processedLen == totalUccLen)
             ? PROCESSING_UDS_CERTS_COMPLETE
             : PROCESSING_UDS_CERTS_IN_PROGRESS);
-    return lengthToSend;
+    return chunk;
   }
 
   // Dice cert chain for STRONGBOX has chain length of 2. So it can be returned in a single go.
-  private short processDiceCertChain(byte[] scratchPad) {
+  private short processDiceCertChain(short chunkSize) {
     byte[] diceCertChain = storeDataInst.getDiceCertificateChain();
     short totalDccLen = Util.getShort(diceCertChain, (short) 0);
     if (totalDccLen == 0) {
       // No Uds certificate chain present.
       updateOutputProcessingState(PROCESSING_DICE_CERTS_COMPLETE);
-      return 0;
+      return KMByteBlob.instance((short) 0);
     }
     short processedLen = getResponseProcessedLength(DICE_PROCESSED_LENGTH);
     short lengthToSend = (short) (totalDccLen - processedLen);
-    if (lengthToSend > MAX_SEND_DATA) {
-      lengthToSend = MAX_SEND_DATA;
+    if (lengthToSend > chunkSize) {
+      lengthToSend = chunkSize;
     }
-    Util.arrayCopyNonAtomic(
-        diceCertChain, (short) (2 + processedLen), scratchPad, (short) 0, lengthToSend);
+    short chunk = KMByteBlob.instance(diceCertChain, (short) (2 + processedLen), lengthToSend);
 
     processedLen += lengthToSend;
     updateResponseProcessedLength(DICE_PROCESSED_LENGTH, processedLen);
@@ -1202,7 +1413,7 @@ public class KMRemotelyProvisionedComponentDevice {
         (processedLen == totalDccLen)
             ? PROCESSING_DICE_CERTS_COMPLETE
             : PROCESSING_DICE_CERTS_IN_PROGRESS);
-    return lengthToSend;
+    return chunk;
   }
 
   private short constructCoseMacForRkpKey(byte[] scratchPad, short pubKey) {
@@ -1236,25 +1447,30 @@ public class KMRemotelyProvisionedComponentDevice {
         KMKeymasterApplet.encodeToApduBuffer(
             headerPtr, scratchPad, (short) 0, KMKeymasterApplet.MAX_COSE_BUF_SIZE);
     short protectedHeader = KMByteBlob.instance(scratchPad, (short) 0, len);
-    // create MAC_Structure
-    short macStructure =
-        KMCose.constructCoseMacStructure(protectedHeader, KMByteBlob.instance((short) 0), payload);
     // Encode the Mac_structure and do HMAC_Sign to produce the tag for COSE_MAC0
     len =
-        KMKeymasterApplet.encodeToApduBuffer(
-            macStructure, scratchPad, (short) 0, KMKeymasterApplet.MAX_COSE_BUF_SIZE);
+        KMCose.encodeCoseStructure(
+            encoder,
+            KMCose.MAC_CONTEXT,
+            protectedHeader,
+            KMByteBlob.instance((short) 0),
+            payload,
+            scratchPad,
+            (short) 0,
+            KMKeymasterApplet.MAX_COSE_BUF_SIZE);
     // HMAC Sign.
     short hmacLen = rkpHmacSign(scratchPad, (short) 0, len, scratchPad, len);
-    // Create COSE_MAC0 object
-    short coseMac0 =
-        KMCose.constructCoseMac0(
+    short tag = KMByteBlob.instance(scratchPad, len, hmacLen);
+    // Encode COSE_MAC0 object
+    len =
+        KMCose.encodeCoseMac0(
+            encoder,
             protectedHeader,
-            KMCoseHeaders.instance(KMArray.instance((short) 0)),
             payload,
-            KMByteBlob.instance(scratchPad, len, hmacLen));
-    len =
-        KMKeymasterApplet.encodeToApduBuffer(
-            coseMac0, scratchPad, (short) 0, KMKeymasterApplet.MAX_COSE_BUF_SIZE);
+            tag,
+            scratchPad,
+            (short) 0,
+            KMKeymasterApplet.MAX_COSE_BUF_SIZE);
     return KMByteBlob.instance(scratchPad, (short) 0, len);
   }
 
@@ -18,6 +18,8 @@
 
 #include "JavacardRemotelyProvisionedComponentDevice.h"
 
+#include <algorithm>
+
 #include <aidl/android/hardware/security/keymint/MacedPublicKey.h>
 
 #include <KeyMintUtils.h>
@@ -171,16 +173,38 @@ ScopedAStatus JavacardRemotelyProvisionedComponentDevice::beginSendData(
 
 ScopedAStatus JavacardRemotelyProvisionedComponentDevice::updateMacedKey(
     const std::vector<MacedPublicKey>& keysToSign, Array& coseKeys) {
-    for (auto& macedPublicKey : keysToSign) {
+    // The first batch carries a single key. Each response returns the number of keys the
+    // applet can absorb in the next batch.
+    size_t batchSize = 1;
+    size_t index = 0;
+    while (index < keysToSign.size()) {
+        size_t end = std::min(keysToSign.size(), index + batchSize);
+        cppbor::Array keys;
+        for (; index < end; index++) {
+            keys.add(EncodedItem(keysToSign[index].macedKey));
+        }
         cppbor::Array array;
-        array.add(EncodedItem(macedPublicKey.macedKey));
-        auto [item, err] = card_->sendRequest(Instruction::INS_UPDATE_KEY_CMD, array);
+        array.add(std::move(keys));
+        auto [item, err] = card_->sendRequest(Instruction::INS_UPDATE_KEYS_CMD, array);
         if (err != KM_ERROR_OK) {
             LOG(ERROR) << "Error in updateMacedKey.";
             return km_utils::kmError2ScopedAStatus(translateRkpErrorCode(err));
         }
-        auto coseKeyData = cbor_.getByteArrayVec(item, 1);
-        coseKeys.add(EncodedItem(coseKeyData.value()));
+        auto optCoseKeys = cbor_.getArrayItem(item, 1);
+        auto optBatchSize = cbor_.getUint64(item, 2);
+        if (!optCoseKeys || !optBatchSize) {
+            LOG(ERROR) << "Error in decoding response in updateMacedKey.";
+            return km_utils::kmError2ScopedAStatus(KM_ERROR_UNKNOWN_ERROR);
+        }
+        for (size_t i = 0; i < optCoseKeys->size(); i++) {
+            auto coseKeyData = optCoseKeys->get(i)->asBstr();
+            if (!coseKeyData) {
+                LOG(ERROR) << "Error in decoding cose key in updateMacedKey.";
+                return km_utils::kmError2ScopedAStatus(KM_ERROR_UNKNOWN_ERROR);
+            }
+            coseKeys.add(EncodedItem(coseKeyData->value()));
+        }
+        batchSize = std::max<size_t>(1, optBatchSize.value());
     }
     return ScopedAStatus::ok();
 }
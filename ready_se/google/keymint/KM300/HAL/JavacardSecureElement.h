@@ -74,6 +74,9 @@ enum class Instruction {
     INS_GET_ROT_CHALLENGE_CMD = KEYMINT_CMD_APDU_START + 45,
     INS_GET_ROT_DATA_CMD = KEYMINT_CMD_APDU_START + 46,
     INS_SEND_ROT_DATA_CMD = KEYMINT_CMD_APDU_START + 47,
+    // Vendor Commands
+    INS_UPDATE_KEYS_CMD = 0xD1,
+    INS_GENERATE_RKP_KEYS_CMD = 0xD2,
 };
 
 class JavacardSecureElement {